@@ -6,6 +6,8 @@ package com.schibsted.security.artishock;
 
 import com.google.common.collect.ListMultimap;
 import com.schibsted.security.artishock.cli.view.Commands;
+import com.schibsted.security.artishock.shared.HttpClient;
+import com.schibsted.security.artishock.shared.SimpleCache;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Map;
@@ -18,8 +20,12 @@ import io.airlift.airline.ParseOptionMissingException;
 import io.airlift.airline.Parser;
 import io.airlift.airline.model.GlobalMetadata;
 import io.airlift.airline.model.OptionMetadata;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 public class ArtishockCli {
+  private static final Logger log = LogManager.getLogger();
+
   public static void main(String[] args) {
     var builder = Cli.<Runnable>builder("artishock")
         .withDefaultCommand(Commands.CustomHelp.class);
@@ -36,10 +42,22 @@ public class ArtishockCli {
     builder.withCommand(Commands.InferredExclude.class);
     builder.withCommand(Commands.NotClaimed.class);
     builder.withCommand(Commands.ExcludeCandidates.class);
+    builder.withCommand(Commands.CacheStats.class);
+    builder.withCommand(Commands.CacheGc.class);
+    builder.withCommand(Commands.CacheExport.class);
+    builder.withCommand(Commands.CacheImport.class);
 
     var parser = builder.build();
     try {
-      parser.parse(args).run();
+      try {
+        parser.parse(args).run();
+      } finally {
+        // Refreshes started before a failure still land in the cache
+        SimpleCache.drainRefreshes();
+        SimpleCache.saveStats();
+      }
+      log.info(() -> "HTTP connections: " + HttpClient.getConnectionStats());
+      log.info(() -> "Cache: " + SimpleCache.getStats());
     } catch (ParseArgumentsUnexpectedException e) {
       System.err.println(e.getMessage());
       System.err.println("Try '--help' instead");
@@ -0,0 +1,27 @@
+/*
+ * Copyright 2021 Schibsted. Licensed under the terms of the Apache 2.0 license. See LICENSE in the project root.
+ */
+
+package com.schibsted.security.artishock.artifactory;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import java.util.List;
+
+/**
+ * One entry of the results of an items.find AQL query that includes stat fields.
+ * https://www.jfrog.com/confluence/display/JFROG/Artifactory+Query+Language
+ * Files that have never been downloaded have no stats.
+ */
+public class AqlItemRaw {
+  public String repo;
+  public String path;
+  public String name;
+  public List<Stat> stats;
+
+  public static class Stat {
+    public long downloads;
+    public String downloaded;
+    @JsonProperty("downloaded_by")
+    public String downloadedBy;
+  }
+}
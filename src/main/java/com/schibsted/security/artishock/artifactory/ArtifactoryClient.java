@@ -4,26 +4,48 @@
 
 package com.schibsted.security.artishock.artifactory;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.CharMatcher;
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.schibsted.security.artishock.config.RateLimitRetryConfig;
 import com.schibsted.security.artishock.npm.NpmPackageIdentifier;
 import com.schibsted.security.artishock.config.Config;
 import com.schibsted.security.artishock.pypi.PyPiPackageIdentifier;
+import com.schibsted.security.artishock.shared.CacheCategory;
+import com.schibsted.security.artishock.shared.ConnectionInfo;
+import com.schibsted.security.artishock.shared.Futures;
+import com.schibsted.security.artishock.shared.HttpClient;
+import com.schibsted.security.artishock.shared.SimpleCache;
 import java.io.IOException;
+import java.io.Reader;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.function.Consumer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 import java.util.stream.Collectors;
+import okhttp3.MediaType;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.jfrog.artifactory.client.Artifactory;
 import org.jfrog.artifactory.client.ArtifactoryClientBuilder;
-import org.jfrog.artifactory.client.impl.ArtifactoryImpl;
-import org.jfrog.artifactory.client.model.Folder;
-import org.jfrog.artifactory.client.model.Item;
 import org.jfrog.artifactory.client.model.impl.RemoteRepositoryImpl;
 import org.jfrog.artifactory.client.model.impl.RepositoryTypeImpl;
 import org.jfrog.artifactory.client.model.impl.VirtualRepositoryImpl;
@@ -42,17 +64,31 @@ import org.jfrog.artifactory.client.model.repository.settings.SbtRepositorySetti
 public class ArtifactoryClient {
   private static final Logger log = LogManager.getLogger();
 
+  // Only 429 responses are retried, requests to Artifactory are not rate limited
+  private static final RateLimitRetryConfig retryConfig = new RateLimitRetryConfig(20, 5);
+
+  private static final Set<String> REPOSITORY_TYPES = Set.of("local", "remote", "virtual");
+  private static final Set<String> KNOWN_ARTIFACT_TYPES = Set.of("pypi", "gradle", "npm", "sbt", "maven", "nuget", "composer");
+  private static final MediaType AQL_MEDIA_TYPE = MediaType.get("text/plain");
+
   private final Artifactory artifactory;
+  private final ConnectionInfo connectionInfo;
+  private final ObjectMapper mapper = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
 
   /**
    * Resolve credentials and create ArtifactoryFetcher.
+   * Storage and statistics calls go through the shared HttpClient, the jfrog client is only used for repository configs.
    */
   public ArtifactoryClient(Config config) {
+    var transport = config.getTransport();
     artifactory = ArtifactoryClientBuilder.create()
         .setUrl(config.getArtifactoryUrl())
         .setUsername(config.getArtifactoryUsername())
         .setPassword(config.getArtifactoryPassword())
+        .setConnectionTimeout(transport.getConnectTimeoutSeconds() * 1000)
+        .setSocketTimeout(transport.getReadTimeoutSeconds() * 1000)
         .build();
+    connectionInfo = new ConnectionInfo(config.getArtifactoryUrl(), config.getArtifactoryUsername(), config.getArtifactoryPassword());
   }
 
   /**
@@ -102,12 +138,34 @@ public class ArtifactoryClient {
   // TODO consider filtering out names that are not allowed upstream
   public List<NpmPackageIdentifier> getAllNpmPackageIdentifiers(String repositoryName, String path) {
     log.info(() -> "Downloading all package identifiers for " + repositoryName);
-    var topLevelFolders = listSubFolders(repositoryName, path);
+    return deepList(repositoryName, path, 2)
+        .map(ArtifactoryClient::npmPackageIdentifiers)
+        .orElseGet(() -> getAllNpmPackageIdentifiersByFolder(repositoryName, path));
+  }
+
+  /**
+   * Packages are the folders on the first level, except scopes which hold packages on the second level
+   */
+  private static List<NpmPackageIdentifier> npmPackageIdentifiers(List<String> uris) {
+    var result = new ArrayList<NpmPackageIdentifier>();
+    for (var uri : uris) {
+      var parts = uri.substring(1).split("/");
+      if (parts.length == 1 && !parts[0].startsWith("@") && !parts[0].startsWith(".")) {
+        result.add(new NpmPackageIdentifier(parts[0]));
+      } else if (parts.length == 2 && parts[0].startsWith("@")) {
+        result.add(new NpmPackageIdentifier(parts[0].substring(1), parts[1]));
+      }
+    }
+    return result;
+  }
+
+  private List<NpmPackageIdentifier> getAllNpmPackageIdentifiersByFolder(String repositoryName, String path) {
+    var topLevelFolders = listChildren(repositoryName, path);
 
     var result = new ArrayList<NpmPackageIdentifier>();
     for (var topLevelFolder : topLevelFolders) {
       if (topLevelFolder.startsWith("/@")) {
-        var subFolders = listSubFolders(repositoryName, topLevelFolder);
+        var subFolders = listChildren(repositoryName, topLevelFolder);
         var scope = topLevelFolder.substring(2);
         for (var packageName : subFolders) {
           result.add(new NpmPackageIdentifier(scope, packageName.substring(1)));
@@ -122,44 +180,101 @@ public class ArtifactoryClient {
     return result;
   }
 
-  public List<Repository> repoLs() {
-    log.info("Retrieving repos from Artifactory");
-    var virtual = artifactory.repositories().list(RepositoryTypeImpl.VIRTUAL);
-    var remote = artifactory.repositories().list(RepositoryTypeImpl.REMOTE);
-    var local = artifactory.repositories().list(RepositoryTypeImpl.LOCAL);
-
-    var repos = new HashMap<String, Repository>();
-    var reposRaw = new HashMap<String, org.jfrog.artifactory.client.model.Repository>();
+  /**
+   * Repositories with their virtual members, cached for the time to live of the <code>repositories</code> cache category.
+   * With <code>refresh</code> they are always fetched, and the cache is updated with the answer.
+   */
+  public List<Repository> repoLs(int parallelism, boolean refresh) {
+    String json;
+    if (refresh) {
+      json = repositoryConfigsJson(parallelism);
+      SimpleCache.putInCache("all", connectionInfo.getPrefix(), CacheCategory.REPOSITORIES, json);
+    } else {
+      json = SimpleCache.getFromCacheOrExecute(connectionInfo, "all", CacheCategory.REPOSITORIES, () -> repositoryConfigsJson(parallelism));
+    }
+    return repositories(parse(json, new TypeReference<List<RepositoryConfigRaw>>() { }));
+  }
 
-    for (var v : local) {
-      var r = artifactory.repository(v.getKey()).get();
-      var artifactType = artifactType(r.getRepositorySettings());
-      repos.put(v.getKey(), new Repository(r.getKey(), "local", artifactType, null, new ArrayList<>()));
-      reposRaw.put(v.getKey(), r);
+  private String repositoryConfigsJson(int parallelism) {
+    var configs = repositoryConfigs(parallelism);
+    try {
+      return mapper.writeValueAsString(configs);
+    } catch (JsonProcessingException e) {
+      throw new RuntimeException("Failed to serialize repositories", e);
     }
+  }
 
+  /**
+   * All configurations in one request, or one request per repository, <code>parallelism</code> at a time, if the user is
+   * not allowed the bulk request or Artifactory does not have it
+   * https://www.jfrog.com/confluence/display/JFROG/Artifactory+REST+API#ArtifactoryRESTAPI-GetAllRepositoriesConfigurations
+   */
+  private List<RepositoryConfigRaw> repositoryConfigs(int parallelism) {
+    log.info("Retrieving repos from Artifactory");
+    var all = HttpClient.fetchStreamingIfAvailable(connectionInfo, "/api/repositories/configurations", retryConfig,
+        reader -> mapper.readValue(reader, new TypeReference<Map<String, List<RepositoryConfigRaw>>>() { }));
+
+    if (all.isPresent()) {
+      var configs = new ArrayList<RepositoryConfigRaw>();
+      for (var config : Iterables.concat(all.get().values())) {
+        config.packageType = artifactType(config.packageType);
+        configs.add(config);
+      }
+      return configs;
+    }
 
-    for (var v : remote) {
-      var r = (RemoteRepositoryImpl) artifactory.repository(v.getKey()).get();
-      var artifactType = artifactType(r.getRepositorySettings());
-      repos.put(v.getKey(), new Repository(r.getKey(), "remote", artifactType, r.getUrl(), new ArrayList<>()));
-      reposRaw.put(v.getKey(), r);
+    log.info(() -> String.format("Retrieving repos one at a time with parallelism %d", parallelism));
+    var keys = new ArrayList<String>();
+    for (var type : List.of(RepositoryTypeImpl.LOCAL, RepositoryTypeImpl.REMOTE, RepositoryTypeImpl.VIRTUAL)) {
+      artifactory.repositories().list(type).forEach(r -> keys.add(r.getKey()));
     }
 
-    for (var v : virtual) {
-      var r = (VirtualRepositoryImpl) artifactory.repository(v.getKey()).get();
-      var artifactType = artifactType(r.getRepositorySettings());
+    var executor = Executors.newFixedThreadPool(parallelism,
+        new ThreadFactoryBuilder().setNameFormat("artishock-repo-ls-%d").setDaemon(true).build());
+    try {
+      var futures = keys.stream()
+          .map(key -> CompletableFuture.supplyAsync(() -> repositoryConfig(artifactory.repository(key).get()), executor))
+          .collect(Collectors.toList());
+      return futures.stream()
+          .map(Futures::join)
+          .collect(Collectors.toList());
+    } finally {
+      executor.shutdown();
+    }
+  }
 
-      repos.put(v.getKey(), new Repository(r.getKey(), "virtual", artifactType, null, new ArrayList<>()));
-      reposRaw.put(v.getKey(), r);
+  private RepositoryConfigRaw repositoryConfig(org.jfrog.artifactory.client.model.Repository repository) {
+    var config = new RepositoryConfigRaw();
+    config.key = repository.getKey();
+    config.packageType = artifactType(repository.getRepositorySettings());
+    if (repository instanceof RemoteRepositoryImpl) {
+      config.rclass = "remote";
+      config.url = ((RemoteRepositoryImpl) repository).getUrl();
+    } else if (repository instanceof VirtualRepositoryImpl) {
+      config.rclass = "virtual";
+      config.repositories = new ArrayList<>(((VirtualRepositoryImpl) repository).getRepositories());
+    } else {
+      config.rclass = "local";
     }
+    return config;
+  }
 
-    for (var v : virtual) {
-      var r = (VirtualRepositoryImpl) reposRaw.get(v.getKey());
+  private static List<Repository> repositories(List<RepositoryConfigRaw> configs) {
+    var repos = new HashMap<String, Repository>();
+    for (var c : configs) {
+      if (!REPOSITORY_TYPES.contains(c.rclass)) {
+        continue;
+      }
+      repos.put(c.key, new Repository(c.key, c.rclass, c.packageType, c.rclass.equals("remote") ? c.url : null, new ArrayList<>()));
+    }
 
-      var repo = repos.get(v.getKey());
-      for (var c : r.getRepositories()) {
-        repo.addChild(repos.get(c));
+    for (var c : configs) {
+      var repo = repos.get(c.key);
+      if (repo == null || !c.rclass.equals("virtual") || c.repositories == null) {
+        continue;
+      }
+      for (var member : c.repositories) {
+        Optional.ofNullable(repos.get(member)).ifPresent(repo::addChild);
       }
     }
 
@@ -170,6 +285,14 @@ public class ArtifactoryClient {
         .collect(Collectors.toList());
   }
 
+  /**
+   * Package type from a repository configuration, in the same terms as the repository settings
+   */
+  private static String artifactType(String packageType) {
+    var type = Optional.ofNullable(packageType).orElse("").toLowerCase(Locale.ENGLISH);
+    return KNOWN_ARTIFACT_TYPES.contains(type) ? type : "other";
+  }
+
   // TODO support more
   public String artifactType(RepositorySettings repositorySettings) {
     if (repositorySettings instanceof PypiRepositorySettings) {
@@ -196,29 +319,74 @@ public class ArtifactoryClient {
   }
 
   private List<String> listSubFolders(String repositoryName, String folderName) {
+    return deepList(repositoryName, folderName, 1).orElseGet(() -> listChildren(repositoryName, folderName));
+  }
+
+  /**
+   * Uris of the files and folders below <code>folderName</code> down to <code>depth</code> levels, in one request.
+   * Empty if the file list is not available, the caller then lists one folder at a time.
+   * https://www.jfrog.com/confluence/display/JFROG/Artifactory+REST+API#ArtifactoryRESTAPI-FileList
+   */
+  private Optional<List<String>> deepList(String repositoryName, String folderName, int depth) {
+    var path = storagePath(repositoryName, folderName) + "?list&deep=1&listFolders=1&depth=" + depth;
+    return HttpClient.fetchStreamingIfAvailable(connectionInfo, path, retryConfig, reader -> {
+      var uris = new ArrayList<String>();
+      forEachInArray(reader, "files", FileListRaw.File.class, file -> uris.add(file.uri));
+      return uris;
+    });
+  }
+
+  private List<String> listChildren(String repositoryName, String folderName) {
+    // Missing seems to happen if we have a local folder in the exclude list that have been deleted in artifactory.
+    // It doesn't seem serious enough to warrant that we print something here.
+    return storageInfo(repositoryName, folderName)
+        .flatMap(info -> Optional.ofNullable(info.children))
+        .orElse(List.of())
+        .stream()
+        .map(c -> c.uri)
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * https://www.jfrog.com/confluence/display/JFROG/Artifactory+REST+API#ArtifactoryRESTAPI-FolderInfo
+   */
+  private Optional<FolderInfoRaw> storageInfo(String repository, String path) {
+    return HttpClient.fetchIfExists(connectionInfo, storagePath(repository, path), retryConfig)
+        .map(json -> parse(json, FolderInfoRaw.class));
+  }
+
+  private <T> T parse(String json, Class<T> type) {
     try {
-      Folder folder = artifactory.repository(repositoryName).folder(folderName).info();
+      return mapper.readValue(json, type);
+    } catch (JsonProcessingException e) {
+      throw new RuntimeException("Failed to parse response from Artifactory", e);
+    }
+  }
 
-      return folder.getChildren().stream()
-          .map(Item::getUri)
-          .collect(Collectors.toList());
-    } catch (Exception e) {
-      // This seems to happen if we have a local folder in the exclude list that have been deleted in artifactory.
-      // It doesn't seem serious enough to warrant that we print something here.
-      if (e instanceof IOException) {
-        return List.of();
-      } else {
-        throw e;
-      }
+  private <T> T parse(String json, TypeReference<T> type) {
+    try {
+      return mapper.readValue(json, type);
+    } catch (JsonProcessingException e) {
+      throw new RuntimeException("Failed to parse response from Artifactory", e);
     }
   }
 
-  public Stats repoStats(String repoName, String packageSystem) {
-    return recursiveStats(repoName, "/", archiveExtensions(packageSystem));
+  public Stats repoStats(String repoName, String packageSystem, int parallelism) {
+    return stats(repoName, "/", archiveExtensions(packageSystem), parallelism);
+  }
+
+  public Stats packageStats(String repoName, String packageSystem, NpmPackageIdentifier packageName, int parallelism) {
+    return stats(repoName, packageName.toString(), archiveExtensions(packageSystem), parallelism);
   }
 
-  public Stats packageStats(String repoName, String packageSystem, NpmPackageIdentifier packageName) {
-    return recursiveStats(repoName, packageName.toString(), archiveExtensions(packageSystem));
+  /**
+   * Stats from an AQL search, or by walking the folders if the user is not allowed to search or Artifactory rejects it
+   */
+  private Stats stats(String repository, String path, List<String> archiveExtensions, int parallelism) {
+    return aqlStats(repository, path, archiveExtensions).orElseGet(() -> {
+      log.info(() -> String.format("AQL search not available, iterating over all files in %s with parallelism %d", repository, parallelism));
+      return recursiveStats(repository, path, archiveExtensions, parallelism);
+    });
   }
 
   private List<String> archiveExtensions(String packageSystem) {
@@ -230,40 +398,215 @@ public class ArtifactoryClient {
     };
   }
 
-  public Stats recursiveStats(String repository, String path, List<String> archiveExtensions) {
-    Folder folder = artifactory.repository(repository).folder(path).info();
+  /**
+   * Walks the folders below <code>path</code> on a work-stealing pool, with at most <code>parallelism</code> calls to Artifactory at once
+   */
+  public Stats recursiveStats(String repository, String path, List<String> archiveExtensions, int parallelism) {
+    if (parallelism < 1) {
+      throw new RuntimeException(String.format("Parallelism must be at least 1, got %d", parallelism));
+    }
+
+    var pool = new ForkJoinPool(parallelism);
+    try {
+      var walk = new StatsWalk(repository, archiveExtensions, new Semaphore(parallelism),
+          folder -> storageInfo(repository, folder), file -> getDownloadStats(repository, file));
+      return pool.invoke(new StatsTask(walk, path, false)).toStats();
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * What the tasks of one walk share, calls to Artifactory go through <code>limited</code>
+   */
+  private static class StatsWalk {
+    private final String repository;
+    private final List<String> archiveExtensions;
+    private final Semaphore permits;
+    private final Function<String, Optional<FolderInfoRaw>> folderInfo;
+    private final Function<String, DownloadStats> downloadStats;
+
+    private StatsWalk(String repository, List<String> archiveExtensions, Semaphore permits,
+                      Function<String, Optional<FolderInfoRaw>> folderInfo, Function<String, DownloadStats> downloadStats) {
+      this.repository = repository;
+      this.archiveExtensions = archiveExtensions;
+      this.permits = permits;
+      this.folderInfo = folderInfo;
+      this.downloadStats = downloadStats;
+    }
+
+    private <T> T limited(Function<String, T> call, String path) {
+      try {
+        permits.acquire();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException("Interrupted while gathering stats for " + repository, e);
+      }
+      try {
+        return call.apply(path);
+      } finally {
+        permits.release();
+      }
+    }
+  }
+
+  /**
+   * Stats for a file or folder, a folder forks a task for each child and combines their stats
+   */
+  private static class StatsTask extends RecursiveTask<StatsAccumulator> {
+    private static final long serialVersionUID = 1L;
+
+    private final transient StatsWalk walk;
+    private final String path;
+    private final boolean file;
+
+    private StatsTask(StatsWalk walk, String path, boolean file) {
+      this.walk = walk;
+      this.path = path;
+      this.file = file;
+    }
+
+    @Override
+    protected StatsAccumulator compute() {
+      // The folder listing already tells which children are files, so those need no info call of their own
+      if (file) {
+        return fileStats();
+      }
+
+      var folder = walk.limited(walk.folderInfo, path)
+          .orElseThrow(() -> new RuntimeException(String.format("'%s' not found in %s", path, walk.repository)));
+
+      if (folder.children == null) {
+        return fileStats();
+      }
 
-    if (folder.getChildren() == null) {
-      var extensionMatch = archiveExtensions.stream().filter(path::endsWith).findAny();
-      if (extensionMatch.isPresent()) {
-        //System.out.println(path);
-        var stats = getDownloadStats(repository, path);
-        Optional<ZonedDateTime> lastDownloaded = stats.getDownloadCount() > 0 ? Optional.of(stats.getLastDownloaded()) : Optional.empty();
-        Optional<String> lastDownloadedBy = stats.getDownloadCount() > 0 ? Optional.of(stats.getLastDownloadedBy()) : Optional.empty();
-        return new Stats(stats.getDownloadCount(), 1, lastDownloaded, lastDownloadedBy, Set.of(extensionMatch.get()));
+      var children = folder.children.stream()
+          .map(child -> new StatsTask(walk, path + child.uri, !child.folder))
+          .collect(Collectors.toList());
+
+      var result = new StatsAccumulator(walk.archiveExtensions);
+      for (var child : invokeAll(children)) {
+        result.combine(child.join());
+      }
+      return result;
+    }
+
+    private StatsAccumulator fileStats() {
+      var result = new StatsAccumulator(walk.archiveExtensions);
+      var extension = result.extensionOf(path);
+      if (extension < 0) {
+        return result;
+      }
+
+      var stats = walk.limited(walk.downloadStats, path);
+      if (stats.getDownloadCount() > 0) {
+        result.addArchive(extension, stats.getDownloadCount(), stats.getLastDownloaded().toInstant().toEpochMilli(), stats.getLastDownloadedBy());
       } else {
-        return Stats.empty();
+        result.addArchive(extension, 0);
       }
+      return result;
     }
+  }
 
-    var result = Stats.empty();
-    for (var child : folder.getChildren()) {
-      result = result.merge(recursiveStats(repository, path + child.getUri(), archiveExtensions));
+  /**
+   * Archives below <code>path</code> with their download stats in one search, merged as the response is read.
+   * Empty if the user is not allowed to use AQL or Artifactory rejects the query.
+   * https://www.jfrog.com/confluence/display/JFROG/Artifactory+REST+API#ArtifactoryRESTAPI-ArtifactoryQueryLanguage(AQL)
+   */
+  private Optional<Stats> aqlStats(String repository, String path, List<String> archiveExtensions) {
+    var result = new StatsAccumulator(archiveExtensions);
+    var query = aqlQuery(repository, path, archiveExtensions);
+    return HttpClient.postStreamingIfAllowed(connectionInfo, "/api/search/aql", AQL_MEDIA_TYPE, query, retryConfig,
+            reader -> readAqlResults(reader, result))
+        .map(items -> result.toStats());
+  }
+
+  /**
+   * Not paged, AQL only allows sort, offset and limit when the include has no fields of other domains, like stat.
+   * Users that are not admins must include repo.
+   */
+  private String aqlQuery(String repository, String path, List<String> archiveExtensions) {
+    var criteria = mapper.createObjectNode();
+    criteria.put("repo", repository);
+    criteria.put("type", "file");
+    var and = criteria.putArray("$and");
+
+    var folder = CharMatcher.is('/').trimFrom(path);
+    if (!folder.isEmpty()) {
+      var paths = and.addObject().putArray("$or");
+      paths.addObject().put("path", folder);
+      paths.addObject().putObject("path").put("$match", folder + "/*");
     }
 
-    return result;
+    var names = and.addObject().putArray("$or");
+    for (var extension : archiveExtensions) {
+      names.addObject().putObject("name").put("$match", "*" + extension);
+    }
+
+    return String.format("items.find(%s)"
+        + ".include(\"repo\",\"path\",\"name\",\"stat.downloads\",\"stat.downloaded\",\"stat.downloaded_by\")", criteria);
+  }
+
+  /**
+   * Adds the archives in the results to <code>result</code>, returns the number of items
+   */
+  private int readAqlResults(Reader reader, StatsAccumulator result) throws IOException {
+    var items = new AtomicInteger();
+    forEachInArray(reader, "results", AqlItemRaw.class, item -> {
+      items.incrementAndGet();
+      addItem(item, result);
+    });
+    return items.get();
+  }
+
+  /**
+   * Reads the objects of the array <code>field</code> one at a time, other fields are skipped
+   */
+  private <T> void forEachInArray(Reader reader, String field, Class<T> type, Consumer<T> action) throws IOException {
+    try (var parser = mapper.getFactory().createParser(reader)) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw new RuntimeException("Unexpected response from Artifactory");
+      }
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        var name = parser.getCurrentName();
+        parser.nextToken();
+        if (!name.equals(field)) {
+          parser.skipChildren();
+          continue;
+        }
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+          action.accept(mapper.readValue(parser, type));
+        }
+      }
+    }
+  }
+
+  private static void addItem(AqlItemRaw item, StatsAccumulator result) {
+    var extension = result.extensionOf(item.name);
+    if (extension < 0) {
+      return;
+    }
+
+    var stat = Optional.ofNullable(item.stats).orElse(List.of()).stream()
+        .filter(s -> s.downloads > 0)
+        .findFirst();
+    if (stat.isPresent() && stat.get().downloaded != null) {
+      var lastDownloaded = ZonedDateTime.parse(stat.get().downloaded).toInstant().toEpochMilli();
+      result.addArchive(extension, stat.get().downloads, lastDownloaded, stat.get().downloadedBy);
+    } else {
+      result.addArchive(extension, stat.map(s -> s.downloads).orElse(0L));
+    }
   }
 
   /**
    * https://www.jfrog.com/confluence/display/JFROG/Artifactory+REST+API#ArtifactoryRESTAPI-FileStatistics
    */
   public DownloadStats getDownloadStats(String repository, String path) {
-    var artifactoryImpl = (ArtifactoryImpl) artifactory;
-    var url = "/api/storage/" + repository + "/" + path + "?stats";
-    try {
-      return new DownloadStats(artifactoryImpl.get(url, StatsInfoImpl.class, StatsInfo.class));
-    } catch (IOException e) {
-      throw new RuntimeException(e);
-    }
+    var url = storagePath(repository, path) + "?stats";
+    return new DownloadStats(parse(HttpClient.fetch(connectionInfo, url, retryConfig), StatsInfoImpl.class));
+  }
+
+  private static String storagePath(String repository, String path) {
+    return "/api/storage/" + repository + (path.startsWith("/") ? path : "/" + path);
   }
 }
@@ -0,0 +1,20 @@
+/*
+ * Copyright 2021 Schibsted. Licensed under the terms of the Apache 2.0 license. See LICENSE in the project root.
+ */
+
+package com.schibsted.security.artishock.artifactory;
+
+import java.util.List;
+
+/**
+ * https://www.jfrog.com/confluence/display/JFROG/Artifactory+REST+API#ArtifactoryRESTAPI-FileList
+ * Uris are relative to the listed folder. The files are read one at a time rather than as a whole.
+ */
+public class FileListRaw {
+  public List<File> files;
+
+  public static class File {
+    public String uri;
+    public boolean folder;
+  }
+}
@@ -0,0 +1,21 @@
+/*
+ * Copyright 2021 Schibsted. Licensed under the terms of the Apache 2.0 license. See LICENSE in the project root.
+ */
+
+package com.schibsted.security.artishock.artifactory;
+
+import java.util.List;
+
+/**
+ * https://www.jfrog.com/confluence/display/JFROG/Artifactory+REST+API#ArtifactoryRESTAPI-FolderInfo
+ * Files have the same shape without children.
+ */
+public class FolderInfoRaw {
+  public String path;
+  public List<Child> children;
+
+  public static class Child {
+    public String uri;
+    public boolean folder;
+  }
+}
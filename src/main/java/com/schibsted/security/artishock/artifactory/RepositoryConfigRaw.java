@@ -0,0 +1,22 @@
+/*
+ * Copyright 2021 Schibsted. Licensed under the terms of the Apache 2.0 license. See LICENSE in the project root.
+ */
+
+package com.schibsted.security.artishock.artifactory;
+
+import java.util.List;
+
+/**
+ * The parts of a repository configuration that repo-ls shows, also the form in which the repositories are cached.
+ * https://www.jfrog.com/confluence/display/JFROG/Artifactory+REST+API#ArtifactoryRESTAPI-RepositoryConfiguration
+ */
+public class RepositoryConfigRaw {
+  public String key;
+  // local, remote, virtual or federated
+  public String rclass;
+  public String packageType;
+  // Upstream of a remote repository
+  public String url;
+  // Members of a virtual repository
+  public List<String> repositories;
+}
@@ -5,11 +5,8 @@
 package com.schibsted.security.artishock.artifactory;
 
 import java.time.ZonedDateTime;
-import java.util.Collection;
 import java.util.Optional;
 import java.util.Set;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 public class Stats {
   private final long downloadCount;
@@ -48,36 +45,4 @@ public class Stats {
   public Set<String> getExtensions() {
     return extensions;
   }
-
-  public Stats merge(Stats other) {
-    var extensions = Stream.of(this.extensions, other.getExtensions())
-        .flatMap(Collection::stream)
-        .collect(Collectors.toSet());
-
-    return new Stats(this.downloadCount + other.getDownloadCount(),
-        this.archiveCount + other.getArchiveCount(),
-        isAfter(this.lastDownloaded, other.getLastDownloaded()) ? this.lastDownloaded : other.getLastDownloaded(),
-        isAfter(this.lastDownloaded, other.getLastDownloaded()) ? this.getLastDownloadedBy() : other.getLastDownloadedBy(),
-        extensions);
-  }
-
-  public static Stats empty() {
-    return new Stats(0, 0, Optional.empty(), Optional.empty(), Set.of());
-  }
-
-  private static boolean isAfter(Optional<ZonedDateTime> a, Optional<ZonedDateTime> b) {
-    if (a.isEmpty() && b.isEmpty()) {
-      return true;
-    }
-
-    if (a.isPresent() && b.isEmpty()) {
-      return true;
-    }
-
-    if (b.isPresent() && a.isEmpty()) {
-      return false;
-    }
-
-    return a.get().isAfter(b.get());
-  }
 }
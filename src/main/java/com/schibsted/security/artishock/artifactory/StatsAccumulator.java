@@ -0,0 +1,102 @@
+/*
+ * Copyright 2021 Schibsted. Licensed under the terms of the Apache 2.0 license. See LICENSE in the project root.
+ */
+
+package com.schibsted.security.artishock.artifactory;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Adds up Stats for many archives without creating a Stats per archive.
+ * Not thread safe: each thread fills its own accumulator, and those are combined once the threads are done.
+ */
+public class StatsAccumulator {
+  private final List<String> extensions;
+  private long downloadCount;
+  private long archiveCount;
+  // Bit i is set when an archive with extensions[i] was added
+  private long extensionBits;
+  private boolean downloaded;
+  private long lastDownloadedMillis;
+  private String lastDownloadedBy;
+
+  /**
+   * @param extensions archive extensions of the package system, an archive is added with the index of its extension
+   */
+  public StatsAccumulator(List<String> extensions) {
+    if (extensions.size() > Long.SIZE) {
+      throw new RuntimeException(String.format("At most %d archive extensions are supported, got %d", Long.SIZE, extensions.size()));
+    }
+    this.extensions = extensions;
+  }
+
+  /**
+   * Index of the extension that <code>name</code> ends with, -1 if it is not an archive
+   */
+  public int extensionOf(String name) {
+    for (var i = 0; i < extensions.size(); i++) {
+      if (name.endsWith(extensions.get(i))) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * An archive without a known last download
+   */
+  public void addArchive(int extension, long downloads) {
+    archiveCount++;
+    downloadCount += downloads;
+    extensionBits |= 1L << extension;
+  }
+
+  public void addArchive(int extension, long downloads, long lastDownloadedMillis, String lastDownloadedBy) {
+    addArchive(extension, downloads);
+    lastDownload(lastDownloadedMillis, lastDownloadedBy);
+  }
+
+  /**
+   * Adds what <code>other</code> holds, which must be for the same extensions
+   */
+  public void combine(StatsAccumulator other) {
+    if (!other.extensions.equals(extensions)) {
+      throw new RuntimeException("Cannot combine stats for different archive extensions");
+    }
+    downloadCount += other.downloadCount;
+    archiveCount += other.archiveCount;
+    extensionBits |= other.extensionBits;
+    if (other.downloaded) {
+      lastDownload(other.lastDownloadedMillis, other.lastDownloadedBy);
+    }
+  }
+
+  // The download added last wins a tie
+  private void lastDownload(long millis, String by) {
+    if (!downloaded || millis >= lastDownloadedMillis) {
+      downloaded = true;
+      lastDownloadedMillis = millis;
+      lastDownloadedBy = by;
+    }
+  }
+
+  public Stats toStats() {
+    var found = new HashSet<String>();
+    for (var i = 0; i < extensions.size(); i++) {
+      if ((extensionBits & 1L << i) != 0) {
+        found.add(extensions.get(i));
+      }
+    }
+
+    Optional<ZonedDateTime> lastDownloaded = downloaded
+        ? Optional.of(ZonedDateTime.ofInstant(Instant.ofEpochMilli(lastDownloadedMillis), ZoneOffset.UTC))
+        : Optional.empty();
+    Optional<String> by = downloaded ? Optional.ofNullable(lastDownloadedBy) : Optional.empty();
+    return new Stats(downloadCount, archiveCount, lastDownloaded, by, found);
+  }
+}
@@ -6,6 +6,7 @@ package com.schibsted.security.artishock.cli.view;
 
 import com.schibsted.security.artishock.cli.viewmodel.Artishock;
 import java.util.List;
+import java.util.Optional;
 import javax.inject.Inject;
 
 import com.schibsted.security.artishock.config.RateLimitRetryConfig;
@@ -28,15 +29,40 @@ public class Commands {
   private static final String REMOTE_DESCRIPTION = "Name of an Artifactory repo of type remote";
   private static final String QUERY_UPSTREAM_NAME = "--query-upstream";
   private static final String QUERY_UPSTREAM_DESCRIPTION = "Acknowledge that this command sends internal package names upstream";
+  private static final String LOCAL_NAME_INDEX_NAME = "--local-name-index";
+  private static final String LOCAL_NAME_INDEX_DESCRIPTION = "Check names against a local copy of all upstream names, updated in bulk, instead of looking each one up upstream";
   private static final String RETRIES_NAME = "--retries";
   private static final String RETRIES_DESCRIPTION = "Number of retries on rate limiting, default 20";
   private static final String PAUSE_SECONDS_NAME = "--pause-seconds";
-  private static final String PAUSE_SECONDS_DESCRIPTION = "Number of seconds to pause on a retry, default 5";
+  private static final String PAUSE_SECONDS_DESCRIPTION = "Number of seconds to pause on the first retry, doubled on each retry, default 5";
+  private static final String PARALLELISM_NAME = "--parallelism";
+  private static final String PARALLELISM_DESCRIPTION = "Number of concurrent requests per host, default from config or 8";
+  private static final String ARTIFACTORY_PARALLELISM_DESCRIPTION = "Number of concurrent requests to Artifactory when it has to be asked one item at a time, default from config or 8";
+  private static final String REQUESTS_PER_SECOND_NAME = "--requests-per-second";
+  private static final String REQUESTS_PER_SECOND_DESCRIPTION = "Request rate per upstream host to start at, halved when the host answers 429, default from config or 1";
+  private static final String MAX_REQUESTS_PER_SECOND_NAME = "--max-requests-per-second";
+  private static final String MAX_REQUESTS_PER_SECOND_DESCRIPTION = "Rate per upstream host that the request rate may be raised to while requests succeed, default from config or the request rate";
+  private static final String BURST_NAME = "--burst";
+  private static final String BURST_DESCRIPTION = "Requests allowed at once per upstream host before the rate applies, default from config or 1";
+  private static final String CACHE_FILE_NAME = "--file";
+  private static final String HEDGE_PERCENTILE_NAME = "--hedge-percentile";
+  private static final String HEDGE_PERCENTILE_DESCRIPTION = "Send a slow upstream request a second time once it is slower than this latency percentile for the host, e.g. 95, off by default";
+  private static final String REFRESH_NAME = "--refresh";
 
   private static Artishock confused() {
     return new Artishock();
   }
 
+  private static RateLimitRetryConfig rateLimitRetryConfig(int retries, long pauseSeconds, Integer parallelism, Double requestsPerSecond, Integer burst,
+                                                           Double maxRequestsPerSecond, Double hedgePercentile) {
+    return new RateLimitRetryConfig(retries, pauseSeconds,
+        Optional.ofNullable(parallelism),
+        Optional.ofNullable(requestsPerSecond),
+        Optional.ofNullable(burst),
+        Optional.ofNullable(maxRequestsPerSecond),
+        Optional.ofNullable(hedgePercentile));
+  }
+
   @io.airlift.airline.Command(name = "help", description = "Help")
   public static class CustomHelp extends Help {
     @Override
@@ -116,16 +142,22 @@ public class Commands {
     @io.airlift.airline.Option(type = OptionType.COMMAND, name = PACKAGE_SYSTEM_NAME, description = "maven, npm, pypi")
     public String packageSystem;
 
+    @io.airlift.airline.Option(name = PARALLELISM_NAME, description = ARTIFACTORY_PARALLELISM_DESCRIPTION)
+    public Integer parallelism;
+
+    @io.airlift.airline.Option(name = REFRESH_NAME, description = "Fetch the repositories from Artifactory even if they are cached")
+    public boolean refresh;
+
     @Override
     public void run() {
       verboseAndHelp("repo-ls");
 
-      renderer().render(confused().repoLs(packageSystem));
+      renderer().render(confused().repoLs(packageSystem, parallelism, refresh));
     }
   }
 
 
-  @Command(name = "repo-stats", description = "Stats for a given Artifactory repository by iterating over all files (slow)")
+  @Command(name = "repo-stats", description = "Download stats for a given Artifactory repository, from AQL searches or by iterating over all files if AQL is not allowed (slow)")
   public static class RepoStats extends BaseCommand {
 
     @io.airlift.airline.Option(name = REPO_NAME, description = REPO_DESCRIPTION, required = true)
@@ -134,15 +166,18 @@ public class Commands {
     @io.airlift.airline.Option(name = PACKAGE_SYSTEM_NAME, description = "maven, npm, pypi", required = true)
     public String packageSystem;
 
+    @io.airlift.airline.Option(name = PARALLELISM_NAME, description = ARTIFACTORY_PARALLELISM_DESCRIPTION)
+    public Integer parallelism;
+
     @Override
     public void run() {
       verboseAndHelp("repo-stats");
 
-      renderer().render(confused().repoStats(repoName, packageSystem));
+      renderer().render(confused().repoStats(repoName, packageSystem, parallelism));
     }
   }
 
-  @Command(name = "package-stats", description = "Stats for a given package in Artifactory by iterating recursively (can be slow)")
+  @Command(name = "package-stats", description = "Download stats for a given package in Artifactory, from AQL searches or by iterating recursively if AQL is not allowed (can be slow)")
   public static class PackageStats extends BaseCommand {
 
     @io.airlift.airline.Option(name = REPO_NAME, description = REPO_DESCRIPTION, required = true)
@@ -154,11 +189,60 @@ public class Commands {
     @io.airlift.airline.Option(name = "--package", description = "Name of the package", required = true)
     public String packageName;
 
+    @io.airlift.airline.Option(name = PARALLELISM_NAME, description = ARTIFACTORY_PARALLELISM_DESCRIPTION)
+    public Integer parallelism;
+
     @Override
     public void run() {
       verboseAndHelp("package-stats");
 
-      renderer().render(confused().packageStats(repoName, packageSystem, packageName));
+      renderer().render(confused().packageStats(repoName, packageSystem, packageName, parallelism));
+    }
+  }
+
+  @Command(name = "cache-stats", description = "Entries, size and ages of the cache per category, and how many lookups the last run answered from it")
+  public static class CacheStats extends BaseCommand {
+    @Override
+    public void run() {
+      verboseAndHelp("cache-stats");
+
+      renderer().render(confused().cacheStats());
+    }
+  }
+
+  @Command(name = "cache-gc", description = "Remove expired entries from the cache and shrink the cache file")
+  public static class CacheGc extends BaseCommand {
+    @Override
+    public void run() {
+      verboseAndHelp("cache-gc");
+
+      renderer().render(confused().cacheGc());
+    }
+  }
+
+  @Command(name = "cache-export", description = "Write the cache to a compressed file, to be imported on another machine")
+  public static class CacheExport extends BaseCommand {
+    @io.airlift.airline.Option(name = CACHE_FILE_NAME, description = "File to write", required = true)
+    public String file;
+
+    @Override
+    public void run() {
+      verboseAndHelp("cache-export");
+
+      renderer().render(confused().cacheExport(file));
+    }
+  }
+
+  @Command(name = "cache-import", description = "Add entries from a file written by cache-export to the cache, newer answers win")
+  public static class CacheImport extends BaseCommand {
+    @io.airlift.airline.Option(name = CACHE_FILE_NAME, description = "File written by cache-export", required = true)
+    public String file;
+
+    @Override
+    public void run() {
+      verboseAndHelp("cache-import");
+
+      renderer().render(confused().cacheImport(file));
     }
   }
 
@@ -229,17 +313,35 @@ public class Commands {
     @io.airlift.airline.Option(name = QUERY_UPSTREAM_NAME, description = QUERY_UPSTREAM_DESCRIPTION)
     boolean queryUpstream;
 
+    @io.airlift.airline.Option(name = LOCAL_NAME_INDEX_NAME, description = LOCAL_NAME_INDEX_DESCRIPTION)
+    boolean localNameIndex;
+
     @io.airlift.airline.Option(name = RETRIES_NAME, description = RETRIES_DESCRIPTION)
     public int retries = 20;
 
     @io.airlift.airline.Option(name = PAUSE_SECONDS_NAME, description = PAUSE_SECONDS_DESCRIPTION)
     public long pauseSeconds = 5;
 
+    @io.airlift.airline.Option(name = PARALLELISM_NAME, description = PARALLELISM_DESCRIPTION)
+    public Integer parallelism;
+
+    @io.airlift.airline.Option(name = REQUESTS_PER_SECOND_NAME, description = REQUESTS_PER_SECOND_DESCRIPTION)
+    public Double requestsPerSecond;
+
+    @io.airlift.airline.Option(name = BURST_NAME, description = BURST_DESCRIPTION)
+    public Integer burst;
+
+    @io.airlift.airline.Option(name = MAX_REQUESTS_PER_SECOND_NAME, description = MAX_REQUESTS_PER_SECOND_DESCRIPTION)
+    public Double maxRequestsPerSecond;
+
+    @io.airlift.airline.Option(name = HEDGE_PERCENTILE_NAME, description = HEDGE_PERCENTILE_DESCRIPTION)
+    public Double hedgePercentile;
+
     @Override
     public void run() {
       verboseAndHelp("inferred-exclude");
 
-      renderer().render(confused().inferredExclude(packageSystem, local, remote, queryUpstream, new RateLimitRetryConfig(retries, pauseSeconds)));
+      renderer().render(confused().inferredExclude(packageSystem, local, remote, queryUpstream, localNameIndex, rateLimitRetryConfig(retries, pauseSeconds, parallelism, requestsPerSecond, burst, maxRequestsPerSecond, hedgePercentile)));
     }
   }
 
@@ -257,17 +359,35 @@ public class Commands {
     @io.airlift.airline.Option(name = QUERY_UPSTREAM_NAME, description = QUERY_UPSTREAM_DESCRIPTION)
     boolean queryUpstream;
 
+    @io.airlift.airline.Option(name = LOCAL_NAME_INDEX_NAME, description = LOCAL_NAME_INDEX_DESCRIPTION)
+    boolean localNameIndex;
+
     @io.airlift.airline.Option(name = RETRIES_NAME, description = RETRIES_DESCRIPTION)
     public int retries = 20;
 
     @io.airlift.airline.Option(name = PAUSE_SECONDS_NAME, description = PAUSE_SECONDS_DESCRIPTION)
     public long pauseSeconds = 5;
 
+    @io.airlift.airline.Option(name = PARALLELISM_NAME, description = PARALLELISM_DESCRIPTION)
+    public Integer parallelism;
+
+    @io.airlift.airline.Option(name = REQUESTS_PER_SECOND_NAME, description = REQUESTS_PER_SECOND_DESCRIPTION)
+    public Double requestsPerSecond;
+
+    @io.airlift.airline.Option(name = BURST_NAME, description = BURST_DESCRIPTION)
+    public Integer burst;
+
+    @io.airlift.airline.Option(name = MAX_REQUESTS_PER_SECOND_NAME, description = MAX_REQUESTS_PER_SECOND_DESCRIPTION)
+    public Double maxRequestsPerSecond;
+
+    @io.airlift.airline.Option(name = HEDGE_PERCENTILE_NAME, description = HEDGE_PERCENTILE_DESCRIPTION)
+    public Double hedgePercentile;
+
     @Override
     public void run() {
       verboseAndHelp("not-claimed");
 
-      renderer().render(confused().notClaimed(packageSystem, local, excluded, queryUpstream, new RateLimitRetryConfig(retries, pauseSeconds)));
+      renderer().render(confused().notClaimed(packageSystem, local, excluded, queryUpstream, localNameIndex, rateLimitRetryConfig(retries, pauseSeconds, parallelism, requestsPerSecond, burst, maxRequestsPerSecond, hedgePercentile)));
     }
   }
 }
@@ -6,16 +6,25 @@ package com.schibsted.security.artishock.cli.viewmodel;
 
 import com.google.common.base.Joiner;
 import com.schibsted.security.artishock.cli.viewmodel.types.PyPiPackageIdentifier;
+import com.schibsted.security.artishock.config.Config;
 import com.schibsted.security.artishock.config.RateLimitRetryConfig;
 import com.schibsted.security.artishock.npm.Npm;
 import com.schibsted.security.artishock.artifactory.ArtifactoryClient;
 import com.schibsted.security.artishock.cli.viewmodel.types.ArtifactoryRepository;
 import com.schibsted.security.artishock.cli.viewmodel.types.ArtifactoryRepositoryStats;
+import com.schibsted.security.artishock.cli.viewmodel.types.CacheCategoryUsage;
+import com.schibsted.security.artishock.cli.viewmodel.types.CacheGarbageCollection;
+import com.schibsted.security.artishock.cli.viewmodel.types.CacheSnapshot;
+import com.schibsted.security.artishock.cli.viewmodel.types.CacheStatistics;
 import com.schibsted.security.artishock.cli.viewmodel.types.NpmPackageIdentifier;
 import com.schibsted.security.artishock.cli.viewmodel.types.NpmPackageOrScope;
 import com.schibsted.security.artishock.config.ConfigResolver;
 import com.schibsted.security.artishock.pypi.Pypi;
+import com.schibsted.security.artishock.shared.HttpClient;
 import com.schibsted.security.artishock.shared.PackageSystem;
+import com.schibsted.security.artishock.shared.SimpleCache;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.List;
 import java.util.Optional;
 import java.util.stream.Collectors;
@@ -24,34 +33,46 @@ public class Artishock {
   private final Npm npm;
   private final Pypi pypi;
   private final ArtifactoryClient artifactoryClient;
+  private final Config config;
 
   public Artishock() {
-    var config = ConfigResolver.resolveConfig();
+    this.config = ConfigResolver.resolveConfig();
+    HttpClient.configure(config.getTransport(), config.getCircuitBreaker());
+    SimpleCache.configure(config.getCache());
     this.artifactoryClient = new ArtifactoryClient(config);
     this.npm = new Npm(config, artifactoryClient);
     this.pypi = new Pypi(config, artifactoryClient);
   }
 
-  public List<Object> repoLs(String packageSystem) {
+  public List<Object> repoLs(String packageSystem, Integer parallelism, boolean refresh) {
     throwIfNotSupportedOptional(packageSystem, List.of(PackageSystem.MAVEN, PackageSystem.NPM, PackageSystem.PYPI));
 
-    return artifactoryClient.repoLs().stream()
+    return artifactoryClient.repoLs(parallelism(parallelism), refresh).stream()
         .filter(f -> packageSystem == null || f.getArtifactType().equals(packageSystem))
         .map(ArtifactoryRepository::new)
         .collect(Collectors.toList());
   }
 
-  public Object repoStats(String repoName, String packageSystem) {
+  public Object repoStats(String repoName, String packageSystem, Integer parallelism) {
     getPackageSystemOrThrow(packageSystem, List.of(PackageSystem.MAVEN, PackageSystem.NPM, PackageSystem.PYPI));
 
-    return new ArtifactoryRepositoryStats(repoName, artifactoryClient.repoStats(repoName, packageSystem));
+    return new ArtifactoryRepositoryStats(repoName, artifactoryClient.repoStats(repoName, packageSystem, parallelism(parallelism)));
   }
 
-  public Object packageStats(String repoName, String packageSystem, String packageName) {
+  public Object packageStats(String repoName, String packageSystem, String packageName, Integer parallelism) {
     getPackageSystemOrThrow(packageSystem, List.of(PackageSystem.NPM));
 
     var identifier = new com.schibsted.security.artishock.npm.NpmPackageIdentifier(packageName);
-    return new ArtifactoryRepositoryStats(packageName, artifactoryClient.packageStats(repoName, packageSystem, identifier));
+    return new ArtifactoryRepositoryStats(packageName, artifactoryClient.packageStats(repoName, packageSystem, identifier, parallelism(parallelism)));
+  }
+
+  /**
+   * The value given on the command line, else from the config file, else the default
+   */
+  private int parallelism(Integer parallelism) {
+    return Optional.ofNullable(parallelism)
+        .or(config::getParallelism)
+        .orElse(RateLimitRetryConfig.DEFAULT_PARALLELISM);
   }
 
   public List<Object> excludeCandidates(String packageSystem, String local, String trusted, String excluded, RateLimitRetryConfig retryConfig) {
@@ -64,7 +85,7 @@ public class Artishock {
             .collect(Collectors.toList());
       }
       case PYPI -> {
-        return pypi.excludeCandidates(local, Optional.ofNullable(trusted), Optional.ofNullable(excluded), retryConfig).stream()
+        return pypi.excludeCandidates(local, Optional.ofNullable(trusted), Optional.ofNullable(excluded), retryConfig.withDefaults(config)).stream()
             .map(PyPiPackageIdentifier::new)
             .collect(Collectors.toList());
       }
@@ -82,7 +103,7 @@ public class Artishock {
             .collect(Collectors.toList());
       }
       case PYPI -> {
-        return pypi.cached(local, remote, retryConfig).stream()
+        return pypi.cached(local, remote, retryConfig.withDefaults(config)).stream()
             .map(PyPiPackageIdentifier::new)
             .collect(Collectors.toList());
       }
@@ -90,19 +111,20 @@ public class Artishock {
     }
   }
 
-  public List<Object> inferredExclude(String packageSystem, String local, String remote, boolean enableUpstream, RateLimitRetryConfig retryConfig) {
+  public List<Object> inferredExclude(String packageSystem, String local, String remote, boolean enableUpstream, boolean localNameIndex,
+                                      RateLimitRetryConfig retryConfig) {
     verifyEnableUpstreamOrThrow(enableUpstream);
 
     var system = getPackageSystemOrThrow(packageSystem, List.of(PackageSystem.NPM, PackageSystem.PYPI));
 
     switch (system) {
       case NPM -> {
-        return npm.inferredExclude(local, remote, retryConfig).stream()
+        return npm.inferredExclude(local, remote, localNameIndex, retryConfig.withDefaults(config)).stream()
             .map(NpmPackageIdentifier::new)
             .collect(Collectors.toList());
       }
       case PYPI -> {
-        return pypi.inferredExclude(local, remote, retryConfig).stream()
+        return pypi.inferredExclude(local, remote, localNameIndex, retryConfig.withDefaults(config)).stream()
             .map(PyPiPackageIdentifier::new)
             .collect(Collectors.toList());
       }
@@ -110,19 +132,23 @@ public class Artishock {
     }
   }
 
-  public List<Object> notClaimed(String packageSystem, String local, String excluded, boolean enableUpstream, RateLimitRetryConfig retryConfig) {
-    verifyEnableUpstreamOrThrow(enableUpstream);
+  public List<Object> notClaimed(String packageSystem, String local, String excluded, boolean enableUpstream, boolean localNameIndex,
+                                 RateLimitRetryConfig retryConfig) {
+    // Checking against a local copy of the upstream names sends no names upstream
+    if (!localNameIndex) {
+      verifyEnableUpstreamOrThrow(enableUpstream);
+    }
 
     var system = getPackageSystemOrThrow(packageSystem, List.of(PackageSystem.NPM, PackageSystem.PYPI));
 
     switch (system) {
       case NPM -> {
-        return npm.notClaimed(local, Optional.ofNullable(excluded), retryConfig).stream()
+        return npm.notClaimed(local, Optional.ofNullable(excluded), localNameIndex, retryConfig.withDefaults(config)).stream()
             .map(NpmPackageOrScope::new)
             .collect(Collectors.toList());
       }
       case PYPI -> {
-        return pypi.notClaimed(local, Optional.ofNullable(excluded), retryConfig).stream()
+        return pypi.notClaimed(local, Optional.ofNullable(excluded), localNameIndex, retryConfig.withDefaults(config)).stream()
             .map(PyPiPackageIdentifier::new)
             .collect(Collectors.toList());
       }
@@ -130,6 +156,30 @@ public class Artishock {
     }
   }
 
+  public Object cacheExport(String file) {
+    return new CacheSnapshot(file, SimpleCache.exportCache(Path.of(file)));
+  }
+
+  public Object cacheImport(String file) {
+    if (!Files.isRegularFile(Path.of(file))) {
+      throw new RuntimeException(String.format("Cache snapshot '%s' not found", file));
+    }
+    return new CacheSnapshot(file, SimpleCache.importCache(Path.of(file)));
+  }
+
+  public Object cacheStats() {
+    var categories = SimpleCache.usage().stream()
+        .map(CacheCategoryUsage::new)
+        .collect(Collectors.toList());
+    return new CacheStatistics(SimpleCache.fileBytes(), categories, SimpleCache.lastRun());
+  }
+
+  public Object cacheGc() {
+    var before = SimpleCache.fileBytes();
+    var removed = SimpleCache.collectGarbage();
+    return new CacheGarbageCollection(removed, before, SimpleCache.fileBytes());
+  }
+
   void throwIfNotSupportedOptional(String packageSystem, List<PackageSystem> supported) {
     if (packageSystem != null) {
       getPackageSystemOrThrow(packageSystem, supported);
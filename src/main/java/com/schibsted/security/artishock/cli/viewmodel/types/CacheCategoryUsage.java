@@ -0,0 +1,73 @@
+/*
+ * Copyright 2021 Schibsted. Licensed under the terms of the Apache 2.0 license. See LICENSE in the project root.
+ */
+
+package com.schibsted.security.artishock.cli.viewmodel.types;
+
+import com.schibsted.security.artishock.shared.CacheUsage;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class CacheCategoryUsage {
+  private final String category;
+  private final long entries;
+  private final long bytes;
+  private final long stale;
+  private final long expired;
+  private final Map<String, Long> ages = new LinkedHashMap<>();
+
+  public CacheCategoryUsage(CacheUsage usage) {
+    this.category = usage.getCategory().getName();
+    this.entries = usage.getEntries();
+    this.bytes = usage.getBytes();
+    this.stale = usage.getStale();
+    this.expired = usage.getExpired();
+
+    var counts = usage.getAges();
+    var from = "0";
+    for (var i = 0; i < CacheUsage.AGE_LIMITS.size(); i++) {
+      var to = CacheUsage.AGE_LIMITS.get(i).toDays() + "d";
+      ages.put(from + "-" + to, counts[i]);
+      from = to;
+    }
+    ages.put(from + "+", counts[counts.length - 1]);
+  }
+
+  public String getCategory() {
+    return category;
+  }
+
+  public long getEntries() {
+    return entries;
+  }
+
+  public long getBytes() {
+    return bytes;
+  }
+
+  public long getStale() {
+    return stale;
+  }
+
+  public long getExpired() {
+    return expired;
+  }
+
+  /**
+   * Number of entries by time since written, like <code>1d-7d</code>
+   */
+  public Map<String, Long> getAges() {
+    return ages;
+  }
+
+  @Override
+  public String toString() {
+    var sb = new StringBuilder();
+
+    sb.append(String.format("%s: %d entries, %d bytes, %d stale, %d expired\n", category, entries, bytes, stale, expired));
+    sb.append("  ages:");
+    ages.forEach((range, count) -> sb.append(String.format(" %s %d", range, count)));
+
+    return sb.toString();
+  }
+}
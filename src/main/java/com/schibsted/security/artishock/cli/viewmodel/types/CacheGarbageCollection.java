@@ -0,0 +1,34 @@
+/*
+ * Copyright 2021 Schibsted. Licensed under the terms of the Apache 2.0 license. See LICENSE in the project root.
+ */
+
+package com.schibsted.security.artishock.cli.viewmodel.types;
+
+public class CacheGarbageCollection {
+  private final int removed;
+  private final long bytesBefore;
+  private final long bytesAfter;
+
+  public CacheGarbageCollection(int removed, long bytesBefore, long bytesAfter) {
+    this.removed = removed;
+    this.bytesBefore = bytesBefore;
+    this.bytesAfter = bytesAfter;
+  }
+
+  public int getRemoved() {
+    return removed;
+  }
+
+  public long getBytesBefore() {
+    return bytesBefore;
+  }
+
+  public long getBytesAfter() {
+    return bytesAfter;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("removed: %d\nbytes before: %d\nbytes after: %d", removed, bytesBefore, bytesAfter);
+  }
+}
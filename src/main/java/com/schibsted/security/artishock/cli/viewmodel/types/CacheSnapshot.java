@@ -0,0 +1,28 @@
+/*
+ * Copyright 2021 Schibsted. Licensed under the terms of the Apache 2.0 license. See LICENSE in the project root.
+ */
+
+package com.schibsted.security.artishock.cli.viewmodel.types;
+
+public class CacheSnapshot {
+  private final String file;
+  private final int entries;
+
+  public CacheSnapshot(String file, int entries) {
+    this.file = file;
+    this.entries = entries;
+  }
+
+  public String getFile() {
+    return file;
+  }
+
+  public int getEntries() {
+    return entries;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("file: %s\nentries: %d", file, entries);
+  }
+}
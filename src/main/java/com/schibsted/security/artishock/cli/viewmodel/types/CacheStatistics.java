@@ -0,0 +1,83 @@
+/*
+ * Copyright 2021 Schibsted. Licensed under the terms of the Apache 2.0 license. See LICENSE in the project root.
+ */
+
+package com.schibsted.security.artishock.cli.viewmodel.types;
+
+import com.schibsted.security.artishock.shared.CacheStats;
+import java.util.List;
+import java.util.Optional;
+
+public class CacheStatistics {
+  private final long fileBytes;
+  private final List<CacheCategoryUsage> categories;
+  private final Optional<String> lastRun;
+  private final Optional<Double> lastRunHitRate;
+  private final Optional<Long> lastRunMisses;
+  private final Optional<Long> lastRunStaleHits;
+  private final Optional<Long> lastRunNotModified;
+
+  public CacheStatistics(long fileBytes, List<CacheCategoryUsage> categories, Optional<CacheStats.Run> lastRun) {
+    this.fileBytes = fileBytes;
+    this.categories = categories;
+    this.lastRun = lastRun.map(r -> r.finishedAt);
+    this.lastRunHitRate = lastRun.map(CacheStats.Run::hitRate);
+    this.lastRunMisses = lastRun.map(r -> r.misses);
+    this.lastRunStaleHits = lastRun.map(r -> r.staleHits);
+    this.lastRunNotModified = lastRun.map(r -> r.notModified);
+  }
+
+  public long getFileBytes() {
+    return fileBytes;
+  }
+
+  public long getEntries() {
+    return categories.stream().mapToLong(CacheCategoryUsage::getEntries).sum();
+  }
+
+  public long getBytes() {
+    return categories.stream().mapToLong(CacheCategoryUsage::getBytes).sum();
+  }
+
+  public List<CacheCategoryUsage> getCategories() {
+    return categories;
+  }
+
+  public Optional<String> getLastRun() {
+    return lastRun;
+  }
+
+  public Optional<Double> getLastRunHitRate() {
+    return lastRunHitRate;
+  }
+
+  public Optional<Long> getLastRunMisses() {
+    return lastRunMisses;
+  }
+
+  public Optional<Long> getLastRunStaleHits() {
+    return lastRunStaleHits;
+  }
+
+  public Optional<Long> getLastRunNotModified() {
+    return lastRunNotModified;
+  }
+
+  @Override
+  public String toString() {
+    var sb = new StringBuilder();
+
+    sb.append(String.format("file bytes: %d\n", fileBytes));
+    sb.append(String.format("entries: %d\n", getEntries()));
+    sb.append(String.format("entry bytes: %d\n", getBytes()));
+    categories.forEach(c -> sb.append(c).append("\n"));
+
+    lastRun.ifPresent(s -> sb.append(String.format("last run: %s\n", s)));
+    lastRunHitRate.ifPresent(r -> sb.append(String.format("last run hit rate: %.1f%%\n", r * 100)));
+    lastRunMisses.ifPresent(m -> sb.append(String.format("last run misses: %d\n", m)));
+    lastRunStaleHits.ifPresent(m -> sb.append(String.format("last run stale hits: %d\n", m)));
+    lastRunNotModified.ifPresent(m -> sb.append(String.format("last run revalidated as not modified: %d\n", m)));
+
+    return sb.toString().stripTrailing();
+  }
+}
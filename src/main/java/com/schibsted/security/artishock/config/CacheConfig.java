@@ -0,0 +1,106 @@
+/*
+ * Copyright 2021 Schibsted. Licensed under the terms of the Apache 2.0 license. See LICENSE in the project root.
+ */
+
+package com.schibsted.security.artishock.config;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+/**
+ * Limits for cached answers kept in memory in front of the cache file, and how long answers are trusted
+ */
+public class CacheConfig {
+  private static final Ttl DEFAULT_TTL = new Ttl(7, 7);
+  // An upstream name that is claimed stays claimed, while a name that is not claimed is what we need to know about quickly
+  private static final Ttl DEFAULT_TRUE_TTL = new Ttl(7, 90);
+  private static final Ttl DEFAULT_FALSE_TTL = new Ttl(1, 1);
+  // Indexes are always revalidated, which is cheap when the server answers not modified
+  private static final Map<String, Ttl> DEFAULT_CATEGORY_TTL = Map.of("index", new Ttl(0, 0), "repositories", new Ttl(1, 1));
+
+  private final int memoryEntries;
+  private final long memoryBytes;
+  private final Map<String, ConfigRaw.CategoryTtl> ttl;
+  private final Duration stale;
+
+  /**
+   * @param cache may be null, in which case all defaults are used
+   */
+  public CacheConfig(ConfigRaw.Cache cache) {
+    var raw = Optional.ofNullable(cache);
+    this.memoryEntries = raw.map(c -> c.memoryEntries).orElse(100_000);
+    this.memoryBytes = raw.map(c -> c.memoryBytes).orElse(64L * 1024 * 1024);
+    this.ttl = raw.map(c -> c.ttl).orElse(Map.of());
+    this.stale = Duration.ofDays(raw.map(c -> c.staleDays).orElse(0));
+  }
+
+  /**
+   * How long an answer is trusted after it was written, and how far that grows while the answer stays the same
+   */
+  public static class Ttl {
+    private final Duration base;
+    private final Duration max;
+
+    Ttl(int days, int maxDays) {
+      this.base = Duration.ofDays(days);
+      this.max = Duration.ofDays(Math.max(days, maxDays));
+    }
+
+    public Duration getBase() {
+      return base;
+    }
+
+    public Duration getMax() {
+      return max;
+    }
+  }
+
+  public int getMemoryEntries() {
+    return memoryEntries;
+  }
+
+  public long getMemoryBytes() {
+    return memoryBytes;
+  }
+
+  /**
+   * @param category name of the cache category, like <code>package-exists</code>
+   * @param outcome set when the cached answer is true or false
+   */
+  public Ttl getTtl(String category, Optional<Boolean> outcome) {
+    var categoryTtl = Optional.ofNullable(ttl.get(category));
+    var outcomeTtl = outcome.flatMap(o -> categoryTtl.map(c -> o ? c.whenTrue : c.whenFalse));
+    var defaults = Optional.ofNullable(DEFAULT_CATEGORY_TTL.get(category))
+        .orElse(outcome.map(o -> o ? DEFAULT_TRUE_TTL : DEFAULT_FALSE_TTL).orElse(DEFAULT_TTL));
+
+    var days = outcomeTtl.map(t -> t.days)
+        .or(() -> categoryTtl.map(c -> c.days))
+        .orElse((int) defaults.getBase().toDays());
+    var maxDays = outcomeTtl.map(t -> t.maxDays)
+        .or(() -> categoryTtl.map(c -> c.maxDays))
+        .orElse(outcomeTtl.isPresent() || categoryTtl.isPresent() ? days : (int) defaults.getMax().toDays());
+    return new Ttl(days, maxDays);
+  }
+
+  /**
+   * How long after expiry an answer may still be used while it is refreshed in the background, zero if it may not
+   */
+  public Duration getStale() {
+    return stale;
+  }
+
+  /**
+   * No answer is kept longer than this, not counting the stale period
+   */
+  public Duration getLongestTtl() {
+    // The empty category is never configured and gives the defaults
+    return Stream.concat(Stream.of(""), ttl.keySet().stream())
+        .flatMap(category -> Stream.of(Optional.<Boolean>empty(), Optional.of(true), Optional.of(false))
+            .map(outcome -> getTtl(category, outcome)))
+        .map(Ttl::getMax)
+        .max(Duration::compareTo)
+        .get();
+  }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2021 Schibsted. Licensed under the terms of the Apache 2.0 license. See LICENSE in the project root.
+ */
+
+package com.schibsted.security.artishock.config;
+
+import java.util.Optional;
+
+/**
+ * When to stop sending requests to a host that keeps failing or is too slow
+ */
+public class CircuitBreakerConfig {
+  private final int windowSize;
+  private final int minimumCalls;
+  private final int failureRatePercent;
+  private final int slowCallSeconds;
+  private final int openSeconds;
+  private final int maxTrips;
+
+  /**
+   * @param circuitBreaker may be null, in which case all defaults are used
+   */
+  public CircuitBreakerConfig(ConfigRaw.CircuitBreaker circuitBreaker) {
+    var raw = Optional.ofNullable(circuitBreaker);
+    this.windowSize = raw.map(c -> c.windowSize).orElse(20);
+    this.minimumCalls = raw.map(c -> c.minimumCalls).orElse(10);
+    this.failureRatePercent = raw.map(c -> c.failureRatePercent).orElse(50);
+    this.slowCallSeconds = raw.map(c -> c.slowCallSeconds).orElse(30);
+    this.openSeconds = raw.map(c -> c.openSeconds).orElse(30);
+    this.maxTrips = raw.map(c -> c.maxTrips).orElse(5);
+
+    if (minimumCalls > windowSize) {
+      throw new RuntimeException(String.format("Circuit breaker minimumCalls %d is larger than windowSize %d", minimumCalls, windowSize));
+    }
+  }
+
+  /**
+   * Number of most recent calls the failure rate is computed over
+   */
+  public int getWindowSize() {
+    return windowSize;
+  }
+
+  public int getMinimumCalls() {
+    return minimumCalls;
+  }
+
+  public int getFailureRatePercent() {
+    return failureRatePercent;
+  }
+
+  /**
+   * Calls slower than this count as failures
+   */
+  public int getSlowCallSeconds() {
+    return slowCallSeconds;
+  }
+
+  /**
+   * How long a host is left alone after the breaker opens, doubled each time it opens again without recovering
+   */
+  public int getOpenSeconds() {
+    return openSeconds;
+  }
+
+  /**
+   * The host is given up on after the breaker opens this many times in a row
+   */
+  public int getMaxTrips() {
+    return maxTrips;
+  }
+}
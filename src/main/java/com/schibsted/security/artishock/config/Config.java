@@ -4,12 +4,26 @@
 
 package com.schibsted.security.artishock.config;
 
+import java.util.Optional;
+
 public class Config {
   private final String artifactoryUrl;
   private final String artifactoryUsername;
   private final String artifactoryPassword;
+  private final Optional<Integer> parallelism;
+  private final Optional<Double> requestsPerSecond;
+  private final Optional<Integer> burst;
+  private final Optional<Double> maxRequestsPerSecond;
+  private final Optional<Double> hedgePercentile;
+  private final TransportConfig transport;
+  private final CircuitBreakerConfig circuitBreaker;
+  private final CacheConfig cache;
+  private final NpmReplicaConfig npmReplica;
 
-  public Config(String artifactoryUrl, String artifactoryUsername, String artifactoryPassword) {
+  public Config(String artifactoryUrl, String artifactoryUsername, String artifactoryPassword,
+                Optional<Integer> parallelism, Optional<Double> requestsPerSecond, Optional<Integer> burst,
+                Optional<Double> maxRequestsPerSecond, Optional<Double> hedgePercentile, TransportConfig transport,
+                CircuitBreakerConfig circuitBreaker, CacheConfig cache, NpmReplicaConfig npmReplica) {
     if (artifactoryUrl.endsWith("/")) {
       this.artifactoryUrl = artifactoryUrl.substring(0, artifactoryUrl.length() - 1);
     } else {
@@ -17,6 +31,15 @@ public class Config {
     }
     this.artifactoryUsername = artifactoryUsername;
     this.artifactoryPassword = artifactoryPassword;
+    this.parallelism = parallelism;
+    this.requestsPerSecond = requestsPerSecond;
+    this.burst = burst;
+    this.maxRequestsPerSecond = maxRequestsPerSecond;
+    this.hedgePercentile = hedgePercentile;
+    this.transport = transport;
+    this.circuitBreaker = circuitBreaker;
+    this.cache = cache;
+    this.npmReplica = npmReplica;
   }
 
   public String getArtifactoryUrl() {
@@ -30,4 +53,40 @@ public class Config {
   public String getArtifactoryPassword() {
     return artifactoryPassword;
   }
+
+  public Optional<Integer> getParallelism() {
+    return parallelism;
+  }
+
+  public Optional<Double> getRequestsPerSecond() {
+    return requestsPerSecond;
+  }
+
+  public Optional<Integer> getBurst() {
+    return burst;
+  }
+
+  public Optional<Double> getMaxRequestsPerSecond() {
+    return maxRequestsPerSecond;
+  }
+
+  public Optional<Double> getHedgePercentile() {
+    return hedgePercentile;
+  }
+
+  public TransportConfig getTransport() {
+    return transport;
+  }
+
+  public CircuitBreakerConfig getCircuitBreaker() {
+    return circuitBreaker;
+  }
+
+  public CacheConfig getCache() {
+    return cache;
+  }
+
+  public NpmReplicaConfig getNpmReplica() {
+    return npmReplica;
+  }
 }
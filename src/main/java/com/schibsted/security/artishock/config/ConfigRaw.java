@@ -4,8 +4,66 @@
 
 package com.schibsted.security.artishock.config;
 
+import java.util.Map;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
 public class ConfigRaw {
   public String artifactoryUrl;
   public String artifactoryUsername;
   public String artifactoryPassword;
+  public Integer parallelism;
+  public Double requestsPerSecond;
+  public Integer burst;
+  public Double maxRequestsPerSecond;
+  public Double hedgePercentile;
+  public Transport transport;
+  public CircuitBreaker circuitBreaker;
+  public Cache cache;
+  public NpmReplica npmReplica;
+
+  public static class Transport {
+    public Integer connectTimeoutSeconds;
+    public Integer readTimeoutSeconds;
+    public Integer writeTimeoutSeconds;
+    public Integer maxIdleConnections;
+    public Integer keepAliveSeconds;
+    public Integer maxRequests;
+    public Integer maxRequestsPerHost;
+    public Boolean http2;
+  }
+
+  public static class CircuitBreaker {
+    public Integer windowSize;
+    public Integer minimumCalls;
+    public Integer failureRatePercent;
+    public Integer slowCallSeconds;
+    public Integer openSeconds;
+    public Integer maxTrips;
+  }
+
+  public static class Cache {
+    public Integer memoryEntries;
+    public Long memoryBytes;
+    public Map<String, CategoryTtl> ttl;
+    public Integer staleDays;
+  }
+
+  public static class NpmReplica {
+    public String changesUrl;
+    public Integer batchSize;
+  }
+
+  public static class CategoryTtl {
+    public Integer days;
+    public Integer maxDays;
+    @JsonProperty("true")
+    public Ttl whenTrue;
+    @JsonProperty("false")
+    public Ttl whenFalse;
+  }
+
+  public static class Ttl {
+    public Integer days;
+    public Integer maxDays;
+  }
 }
@@ -36,8 +36,15 @@ public class ConfigResolver {
       var artifactoryUrl = getValue(config.artifactoryUrl, "ARTISHOCK_ARTIFACTORY_URL", "artifactory url");
       var artifactoryUser = getValue(config.artifactoryUsername, "ARTISHOCK_ARTIFACTORY_USERNAME", "artifactory user");
       var artifactoryPassword = getValue(config.artifactoryPassword, "ARTISHOCK_ARTIFACTORY_PASSWORD", "artifactory api key");
+      var parallelism = getOptionalInteger(config.parallelism, "ARTISHOCK_PARALLELISM", "parallelism");
+      var requestsPerSecond = getOptionalDouble(config.requestsPerSecond, "ARTISHOCK_REQUESTS_PER_SECOND", "requests per second");
+      var burst = getOptionalInteger(config.burst, "ARTISHOCK_BURST", "burst");
+      var maxRequestsPerSecond = getOptionalDouble(config.maxRequestsPerSecond, "ARTISHOCK_MAX_REQUESTS_PER_SECOND", "max requests per second");
+      var hedgePercentile = getOptionalDouble(config.hedgePercentile, "ARTISHOCK_HEDGE_PERCENTILE", "hedge percentile");
 
-      return new Config(artifactoryUrl, artifactoryUser, artifactoryPassword);
+      return new Config(artifactoryUrl, artifactoryUser, artifactoryPassword, parallelism, requestsPerSecond, burst, maxRequestsPerSecond,
+          hedgePercentile, new TransportConfig(config.transport), new CircuitBreakerConfig(config.circuitBreaker),
+          new CacheConfig(config.cache), new NpmReplicaConfig(config.npmReplica));
     } catch (JsonProcessingException e) {
       throw new RuntimeException("Could deserialize config");
     } catch (IOException e) {
@@ -68,4 +75,34 @@ public class ConfigResolver {
       return configFileValue;
     }
   }
+
+  static Optional<Integer> getOptionalInteger(Integer configFileValue, String env, String description) {
+    Optional<String> envOverride = Optional.ofNullable(System.getenv(env));
+
+    if (envOverride.isPresent()) {
+      log.info(() -> String.format("Using %s from environment variable", description));
+      try {
+        return Optional.of(Integer.parseInt(envOverride.get()));
+      } catch (NumberFormatException e) {
+        throw new RuntimeException(String.format("Expected a number for %s in %s, got '%s'", description, env, envOverride.get()));
+      }
+    }
+
+    return Optional.ofNullable(configFileValue);
+  }
+
+  static Optional<Double> getOptionalDouble(Double configFileValue, String env, String description) {
+    Optional<String> envOverride = Optional.ofNullable(System.getenv(env));
+
+    if (envOverride.isPresent()) {
+      log.info(() -> String.format("Using %s from environment variable", description));
+      try {
+        return Optional.of(Double.parseDouble(envOverride.get()));
+      } catch (NumberFormatException e) {
+        throw new RuntimeException(String.format("Expected a number for %s in %s, got '%s'", description, env, envOverride.get()));
+      }
+    }
+
+    return Optional.ofNullable(configFileValue);
+  }
 }
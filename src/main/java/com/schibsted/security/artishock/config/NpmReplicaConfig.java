@@ -0,0 +1,42 @@
+/*
+ * Copyright 2021 Schibsted. Licensed under the terms of the Apache 2.0 license. See LICENSE in the project root.
+ */
+
+package com.schibsted.security.artishock.config;
+
+import java.util.Optional;
+
+/**
+ * Where the local copy of all npm package names is replicated from
+ */
+public class NpmReplicaConfig {
+  private final String changesUrl;
+  private final int batchSize;
+
+  /**
+   * @param npmReplica may be null, in which case all defaults are used
+   */
+  public NpmReplicaConfig(ConfigRaw.NpmReplica npmReplica) {
+    var raw = Optional.ofNullable(npmReplica);
+    this.changesUrl = raw.map(r -> r.changesUrl).orElse("https://replicate.npmjs.com/_changes");
+    this.batchSize = raw.map(r -> r.batchSize).orElse(10_000);
+
+    if (batchSize < 1) {
+      throw new RuntimeException(String.format("npm replica batchSize must be at least 1, got %d", batchSize));
+    }
+  }
+
+  /**
+   * CouchDB style changes feed listing every package, or a <code>file:</code> URL of a saved feed response to replicate from
+   */
+  public String getChangesUrl() {
+    return changesUrl;
+  }
+
+  /**
+   * Changes asked for per request
+   */
+  public int getBatchSize() {
+    return batchSize;
+  }
+}
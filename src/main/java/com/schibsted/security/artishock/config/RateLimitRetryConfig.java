@@ -1,12 +1,38 @@
 package com.schibsted.security.artishock.config;
 
+import java.util.Optional;
+
 public class RateLimitRetryConfig {
+  public static final int DEFAULT_PARALLELISM = 8;
+  private static final double DEFAULT_REQUESTS_PER_SECOND = 1;
+  private static final int DEFAULT_BURST = 1;
+
   private final int retries;
   private final long pauseSeconds;
+  private final Optional<Integer> parallelism;
+  private final Optional<Double> requestsPerSecond;
+  private final Optional<Integer> burst;
+  private final Optional<Double> maxRequestsPerSecond;
+  private final Optional<Double> hedgePercentile;
 
   public RateLimitRetryConfig(int retries, long pauseSeconds) {
+    this(retries, pauseSeconds, Optional.empty(), Optional.empty(), Optional.empty(), Optional.empty(), Optional.empty());
+  }
+
+  public RateLimitRetryConfig(int retries, long pauseSeconds, Optional<Integer> parallelism,
+                              Optional<Double> requestsPerSecond, Optional<Integer> burst,
+                              Optional<Double> maxRequestsPerSecond, Optional<Double> hedgePercentile) {
+    if (hedgePercentile.isPresent() && (hedgePercentile.get() <= 0 || hedgePercentile.get() >= 100)) {
+      throw new RuntimeException(String.format("Hedge percentile must be between 0 and 100, got %s", hedgePercentile.get()));
+    }
+
     this.retries = retries;
     this.pauseSeconds = pauseSeconds;
+    this.parallelism = parallelism;
+    this.requestsPerSecond = requestsPerSecond;
+    this.burst = burst;
+    this.maxRequestsPerSecond = maxRequestsPerSecond;
+    this.hedgePercentile = hedgePercentile;
   }
 
   public int getRetries() {
@@ -16,4 +42,51 @@ public class RateLimitRetryConfig {
   public long getPauseSeconds() {
     return pauseSeconds;
   }
+
+  /**
+   * Number of concurrent requests per host
+   */
+  public int getParallelism() {
+    return parallelism.orElse(DEFAULT_PARALLELISM);
+  }
+
+  /**
+   * Sustained request rate per upstream host
+   */
+  public double getRequestsPerSecond() {
+    return requestsPerSecond.orElse(DEFAULT_REQUESTS_PER_SECOND);
+  }
+
+  /**
+   * Number of requests that may be sent to an upstream host at once before the rate applies
+   */
+  public int getBurst() {
+    return burst.orElse(DEFAULT_BURST);
+  }
+
+  /**
+   * Upper bound when the request rate is raised after successful requests, by default the rate is never raised
+   */
+  public double getMaxRequestsPerSecond() {
+    return maxRequestsPerSecond.orElse(getRequestsPerSecond());
+  }
+
+  /**
+   * Latency percentile per host after which a GET or HEAD is sent a second time, no hedging if empty
+   */
+  public Optional<Double> getHedgePercentile() {
+    return hedgePercentile;
+  }
+
+  /**
+   * Values not given on the command line are taken from the config file
+   */
+  public RateLimitRetryConfig withDefaults(Config config) {
+    return new RateLimitRetryConfig(retries, pauseSeconds,
+        parallelism.or(config::getParallelism),
+        requestsPerSecond.or(config::getRequestsPerSecond),
+        burst.or(config::getBurst),
+        maxRequestsPerSecond.or(config::getMaxRequestsPerSecond),
+        hedgePercentile.or(config::getHedgePercentile));
+  }
 }
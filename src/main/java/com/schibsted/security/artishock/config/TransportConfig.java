@@ -0,0 +1,68 @@
+/*
+ * Copyright 2021 Schibsted. Licensed under the terms of the Apache 2.0 license. See LICENSE in the project root.
+ */
+
+package com.schibsted.security.artishock.config;
+
+import java.util.Optional;
+
+/**
+ * Connection pool, dispatcher and timeout settings for all HTTP traffic
+ */
+public class TransportConfig {
+  private final int connectTimeoutSeconds;
+  private final int readTimeoutSeconds;
+  private final int writeTimeoutSeconds;
+  private final int maxIdleConnections;
+  private final int keepAliveSeconds;
+  private final int maxRequests;
+  private final int maxRequestsPerHost;
+  private final boolean http2;
+
+  /**
+   * @param transport may be null, in which case all defaults are used
+   */
+  public TransportConfig(ConfigRaw.Transport transport) {
+    var raw = Optional.ofNullable(transport);
+    this.connectTimeoutSeconds = raw.map(t -> t.connectTimeoutSeconds).orElse(50);
+    this.readTimeoutSeconds = raw.map(t -> t.readTimeoutSeconds).orElse(300);
+    this.writeTimeoutSeconds = raw.map(t -> t.writeTimeoutSeconds).orElse(50);
+    this.maxIdleConnections = raw.map(t -> t.maxIdleConnections).orElse(32);
+    this.keepAliveSeconds = raw.map(t -> t.keepAliveSeconds).orElse(300);
+    this.maxRequests = raw.map(t -> t.maxRequests).orElse(256);
+    this.maxRequestsPerHost = raw.map(t -> t.maxRequestsPerHost).orElse(64);
+    this.http2 = raw.map(t -> t.http2).orElse(true);
+  }
+
+  public int getConnectTimeoutSeconds() {
+    return connectTimeoutSeconds;
+  }
+
+  public int getReadTimeoutSeconds() {
+    return readTimeoutSeconds;
+  }
+
+  public int getWriteTimeoutSeconds() {
+    return writeTimeoutSeconds;
+  }
+
+  public int getMaxIdleConnections() {
+    return maxIdleConnections;
+  }
+
+  public int getKeepAliveSeconds() {
+    return keepAliveSeconds;
+  }
+
+  public int getMaxRequests() {
+    return maxRequests;
+  }
+
+  public int getMaxRequestsPerHost() {
+    return maxRequestsPerHost;
+  }
+
+  public boolean isHttp2() {
+    return http2;
+  }
+}
@@ -8,9 +8,11 @@ import com.schibsted.security.artishock.artifactory.ArtifactoryClient;
 import com.schibsted.security.artishock.config.Config;
 import com.schibsted.security.artishock.config.RateLimitRetryConfig;
 import com.schibsted.security.artishock.npm.client.NpmClient;
+import com.schibsted.security.artishock.npm.client.NpmReplica;
 import com.schibsted.security.artishock.shared.ConnectionInfo;
 import com.schibsted.security.artishock.shared.FileReader;
 import com.schibsted.security.artishock.shared.Intersection;
+import com.schibsted.security.artishock.shared.NameIndex;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Optional;
@@ -21,11 +23,13 @@ public class Npm {
   private final Config config;
 
   private final NpmClient npmClient;
+  private final NpmReplica npmReplica;
 
   public Npm(Config config, ArtifactoryClient artifactoryClient) {
     this.config = config;
     this.artifactoryClient = artifactoryClient;
     this.npmClient = new NpmClient();
+    this.npmReplica = new NpmReplica(config.getNpmReplica());
   }
 
   public List<NpmPackageIdentifier> excludeCandidates(String local, Optional<String> trusted, Optional<String> excluded) {
@@ -49,13 +53,13 @@ public class Npm {
     return Intersection.cacheIntersection(localPackages, remoteCached);
   }
 
-  public List<NpmPackageIdentifier> inferredExclude(String local, String remote, RateLimitRetryConfig retryConfig) {
+  public List<NpmPackageIdentifier> inferredExclude(String local, String remote, boolean localNameIndex, RateLimitRetryConfig retryConfig) {
     var localPackages = artifactoryClient.getAllNpmPackageIdentifiersForLocal(local);
 
     // TODO search for scoped packages? This will leak additional names upstream
     var localPackagesWithoutScope = packagesWithoutScope(localPackages);
 
-    var upstreamPackages = npmClient.getPackageList(localPackagesWithoutScope, npmClient.upstream(), retryConfig);
+    var upstreamPackages = upstreamPackages(localPackagesWithoutScope, upstreamNames(localNameIndex, retryConfig), retryConfig);
 
     var connectionInfo = new ConnectionInfo(npmApi(config.getArtifactoryUrl(), remote), config.getArtifactoryUsername(), config.getArtifactoryPassword());
 
@@ -66,7 +70,7 @@ public class Npm {
     return upstreamPackages;
   }
 
-  public List<NpmPackageOrScope> notClaimed(String local, Optional<String> excluded, RateLimitRetryConfig retryConfig) {
+  public List<NpmPackageOrScope> notClaimed(String local, Optional<String> excluded, boolean localNameIndex, RateLimitRetryConfig retryConfig) {
     var localPackages = artifactoryClient.getAllNpmPackageIdentifiersForLocal(local);
 
     if (excluded.isPresent()) {
@@ -80,7 +84,9 @@ public class Npm {
         .distinct()
         .collect(Collectors.toList());
 
-    var upstreamPackages = npmClient.getPackageList(localPackagesWithoutScope, npmClient.upstream(), retryConfig);
+    // Read once for both packages and scopes
+    var upstreamNames = upstreamNames(localNameIndex, retryConfig);
+    var upstreamPackages = upstreamPackages(localPackagesWithoutScope, upstreamNames, retryConfig);
 
     localPackagesWithoutScope.removeAll(upstreamPackages);
 
@@ -88,13 +94,45 @@ public class Npm {
         .map(NpmPackageOrScope::new)
         .collect(Collectors.toList());
 
-    var notClaimedScopes = npmClient.notClaimedOrg(localScopes, retryConfig);
+    var notClaimedScopes = upstreamNames.isPresent()
+        ? notClaimedScopesInReplica(localScopes, upstreamNames.get())
+        : npmClient.notClaimedOrg(localScopes, retryConfig);
 
     result.addAll(notClaimedScopes);
 
     return result;
   }
 
+  /**
+   * All upstream names from the local replica, empty if upstream is to be asked for each package instead
+   */
+  Optional<NameIndex> upstreamNames(boolean localNameIndex, RateLimitRetryConfig retryConfig) {
+    return localNameIndex ? Optional.of(npmReplica.names(retryConfig)) : Optional.empty();
+  }
+
+  /**
+   * The packages that exist upstream, from the local replica of all upstream names or by asking for each package
+   */
+  List<NpmPackageIdentifier> upstreamPackages(List<NpmPackageIdentifier> packages, Optional<NameIndex> upstreamNames, RateLimitRetryConfig retryConfig) {
+    if (upstreamNames.isEmpty()) {
+      return npmClient.getPackageList(packages, npmClient.upstream(), retryConfig);
+    }
+
+    return packages.stream()
+        .filter(p -> upstreamNames.get().contains(p.toString()))
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * Scopes without any package in the replica, a scope that is registered but has no packages is included
+   */
+  List<NpmPackageOrScope> notClaimedScopesInReplica(List<String> scopes, NameIndex upstreamNames) {
+    return scopes.stream()
+        .filter(scope -> !NpmReplica.scopeHasPackages(upstreamNames, scope))
+        .map(scope -> new NpmPackageOrScope(Optional.of(scope), Optional.empty()))
+        .collect(Collectors.toList());
+  }
+
   String npmApi(String artifactoryBase, String repositoryName) {
     return artifactoryBase + "/api/npm/" + repositoryName;
   }
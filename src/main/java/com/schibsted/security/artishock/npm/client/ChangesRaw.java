@@ -0,0 +1,22 @@
+/*
+ * Copyright 2021 Schibsted. Licensed under the terms of the Apache 2.0 license. See LICENSE in the project root.
+ */
+
+package com.schibsted.security.artishock.npm.client;
+
+import java.util.List;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.JsonNode;
+
+public class ChangesRaw {
+  public List<Change> results;
+  // A number on the npm registry, an opaque string on CouchDB 2 and later
+  @JsonProperty("last_seq")
+  public JsonNode lastSeq;
+
+  public static class Change {
+    public JsonNode seq;
+    public String id;
+    public boolean deleted;
+  }
+}
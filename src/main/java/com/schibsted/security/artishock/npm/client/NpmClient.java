@@ -6,15 +6,17 @@ package com.schibsted.security.artishock.npm.client;
 
 import com.schibsted.security.artishock.config.RateLimitRetryConfig;
 import com.schibsted.security.artishock.shared.CacheCategory;
+import com.schibsted.security.artishock.shared.ConcurrentChecker;
 import com.schibsted.security.artishock.shared.ConnectionInfo;
 import com.schibsted.security.artishock.npm.NpmPackageIdentifier;
 import com.schibsted.security.artishock.npm.NpmPackageOrScope;
 import com.schibsted.security.artishock.shared.HttpClient;
 import com.schibsted.security.artishock.shared.SimpleCache;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Supplier;
+import java.util.stream.Collectors;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -30,45 +32,35 @@ public class NpmClient {
   }
 
   public List<NpmPackageOrScope> notClaimedOrg(List<String> scopes, RateLimitRetryConfig retryConfig) {
-    var result = new ArrayList<NpmPackageOrScope>();
-    for (var scope : scopes) {
-      if (!claimedOrgCached(scope, retryConfig)) {
-        result.add(new NpmPackageOrScope(Optional.of(scope), Optional.empty()));
-      }
-    }
-
-    return result;
+    return ConcurrentChecker.matching(org(), scopes, retryConfig.getParallelism(), scope -> claimedOrgCached(scope, retryConfig).thenApply(claimed -> !claimed)).stream()
+        .map(scope -> new NpmPackageOrScope(Optional.of(scope), Optional.empty()))
+        .collect(Collectors.toList());
   }
 
-  boolean claimedOrgCached(String scope, RateLimitRetryConfig retryConfig) {
-    var connectionInfo = new ConnectionInfo("https://www.npmjs.com");
-    Supplier<String> f = () -> Boolean.toString(fetchOrgIsClaimed(connectionInfo, scope, retryConfig));
-    var result = SimpleCache.getFromCacheOrExecute(connectionInfo, scope, CacheCategory.ORG, f);
+  CompletableFuture<Boolean> claimedOrgCached(String scope, RateLimitRetryConfig retryConfig) {
+    var connectionInfo = org();
+    Supplier<CompletableFuture<String>> f = () -> fetchOrgIsClaimed(connectionInfo, scope, retryConfig).thenApply(b -> Boolean.toString(b));
 
-    if (result.equals("true")) {
-      return true;
-    } else if (result.equals("false")) {
-      return false;
-    } else {
-      throw new RuntimeException("Wrong code");
-    }
+    return SimpleCache.getFromCacheOrExecuteAsync(connectionInfo, scope, CacheCategory.ORG, f).thenApply(result -> {
+      if (result.equals("true")) {
+        return true;
+      } else if (result.equals("false")) {
+        return false;
+      } else {
+        throw new RuntimeException("Wrong code");
+      }
+    });
   }
 
   List<NpmPackageIdentifier> checkUpstream(List<NpmPackageIdentifier> packages, ConnectionInfo connectionInfo, RateLimitRetryConfig retryConfig) {
-    var result = new ArrayList<NpmPackageIdentifier>();
-    for (var packageName : packages) {
-      if (existsUpstream(packageName, connectionInfo, retryConfig)) {
-        result.add(packageName);
-      }
-    }
-
-    return result;
+    return ConcurrentChecker.matching(connectionInfo, packages, retryConfig.getParallelism(),
+        packageName -> existsUpstream(packageName, connectionInfo, retryConfig));
   }
 
-  boolean existsUpstream(NpmPackageIdentifier packageName, ConnectionInfo connectionInfo, RateLimitRetryConfig retryConfig) {
-      Supplier<String> f = () -> Boolean.toString(packageExists(packageName.toString(), connectionInfo, retryConfig));
-      var result = SimpleCache.getFromCacheOrExecute(connectionInfo, packageName.toString(), CacheCategory.PACKAGE_EXISTS, f);
+  CompletableFuture<Boolean> existsUpstream(NpmPackageIdentifier packageName, ConnectionInfo connectionInfo, RateLimitRetryConfig retryConfig) {
+    Supplier<CompletableFuture<String>> f = () -> packageExists(packageName.toString(), connectionInfo, retryConfig).thenApply(b -> Boolean.toString(b));
 
+    return SimpleCache.getFromCacheOrExecuteAsync(connectionInfo, packageName.toString(), CacheCategory.PACKAGE_EXISTS, f).thenApply(result -> {
       if (result.equals("true")) {
         return true;
       } else if (result.equals("false")) {
@@ -76,17 +68,22 @@ public class NpmClient {
       } else {
         throw new RuntimeException(String.format("Must be 'true' or 'false' got '%s'", result));
       }
+    });
   }
 
-  boolean fetchOrgIsClaimed(ConnectionInfo connectionInfo, String scope, RateLimitRetryConfig retryConfig) {
-    return HttpClient.exists(connectionInfo, "/org/" + scope, retryConfig);
+  CompletableFuture<Boolean> fetchOrgIsClaimed(ConnectionInfo connectionInfo, String scope, RateLimitRetryConfig retryConfig) {
+    return HttpClient.existsAsync(connectionInfo, "/org/" + scope, retryConfig);
   }
 
-  private boolean packageExists(String packageName, ConnectionInfo connectionInfo, RateLimitRetryConfig retryConfig) {
-    return HttpClient.exists(connectionInfo, "/" + packageName, retryConfig);
+  private CompletableFuture<Boolean> packageExists(String packageName, ConnectionInfo connectionInfo, RateLimitRetryConfig retryConfig) {
+    return HttpClient.existsAsync(connectionInfo, "/" + packageName, retryConfig);
   }
 
   public ConnectionInfo upstream() {
     return new ConnectionInfo("https://registry.npmjs.org");
   }
+
+  ConnectionInfo org() {
+    return new ConnectionInfo("https://www.npmjs.com");
+  }
 }
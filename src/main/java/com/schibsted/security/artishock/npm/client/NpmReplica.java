@@ -0,0 +1,141 @@
+/*
+ * Copyright 2021 Schibsted. Licensed under the terms of the Apache 2.0 license. See LICENSE in the project root.
+ */
+
+package com.schibsted.security.artishock.npm.client;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.schibsted.security.artishock.config.NpmReplicaConfig;
+import com.schibsted.security.artishock.config.RateLimitRetryConfig;
+import com.schibsted.security.artishock.shared.ConnectionInfo;
+import com.schibsted.security.artishock.shared.HttpClient;
+import com.schibsted.security.artishock.shared.NameIndex;
+import com.schibsted.security.artishock.shared.SimpleCache;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A local copy of the names of all packages on the npm registry, kept up to date by following the registry's changes
+ * feed from where the last run stopped, so that only what changed since is downloaded.
+ */
+public class NpmReplica {
+  private static final Logger log = LogManager.getLogger();
+
+  private static final String FILE_NAME = "npm-names.idx";
+  private static final String SEQ = "seq";
+  private static final String FEED = "feed";
+  // Changes held in memory before they are merged into the index, which rewrites it
+  private static final int MERGE_CHANGES = 500_000;
+
+  private final NpmReplicaConfig config;
+  private final ObjectMapper mapper = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+  public NpmReplica(NpmReplicaConfig config) {
+    this.config = config;
+  }
+
+  /**
+   * All package names, scoped ones as <code>@scope/name</code>, brought up to date with the feed first
+   */
+  public NameIndex names(RateLimitRetryConfig retryConfig) {
+    var file = SimpleCache.cacheDirectory().resolve(FILE_NAME);
+    var feed = config.getChangesUrl();
+    // A replica of another feed is started over
+    var index = NameIndex.open(file)
+        .filter(i -> i.getProperty(FEED).equals(Optional.of(feed)));
+    var since = index.flatMap(i -> i.getProperty(SEQ)).orElse("0");
+    log.info(() -> String.format("Replicating npm package names from %s", feed));
+
+    var added = new HashSet<String>();
+    var removed = new HashSet<String>();
+    var saved = since;
+    while (true) {
+      var previous = since;
+      var changes = changesSince(since, retryConfig);
+      var results = Optional.ofNullable(changes.results).orElse(List.of());
+      for (var change : results) {
+        // Design documents of the registry database are not packages
+        if (change.id == null || change.id.startsWith("_design/")) {
+          continue;
+        }
+        if (change.deleted) {
+          added.remove(change.id);
+          removed.add(change.id);
+        } else {
+          removed.remove(change.id);
+          added.add(change.id);
+        }
+      }
+      if (changes.lastSeq != null && !changes.lastSeq.isNull()) {
+        since = changes.lastSeq.asText();
+      } else if (!results.isEmpty() && results.get(results.size() - 1).seq != null && !results.get(results.size() - 1).seq.isNull()) {
+        since = results.get(results.size() - 1).seq.asText();
+      }
+
+      var done = results.size() < config.getBatchSize() || feed.startsWith("file:");
+      if (!done && since.equals(previous)) {
+        throw new RuntimeException(String.format("Changes feed %s did not move past sequence %s", feed, since));
+      }
+      if (done || added.size() + removed.size() >= MERGE_CHANGES) {
+        if (!since.equals(saved) || index.isEmpty()) {
+          index = Optional.of(save(file, index, added, removed, Map.of(FEED, feed, SEQ, since)));
+          saved = since;
+          added.clear();
+          removed.clear();
+        }
+      }
+      if (done) {
+        break;
+      }
+    }
+
+    var size = index.get().size();
+    var seq = since;
+    log.info(() -> String.format("npm replica has %d package names at sequence %s", size, seq));
+    return index.get();
+  }
+
+  /**
+   * True if a package in the scope is on the registry. A scope that is claimed but has no packages is not noticed.
+   */
+  public static boolean scopeHasPackages(NameIndex names, String scope) {
+    return names.containsPrefix("@" + scope + "/");
+  }
+
+  private static NameIndex save(Path file, Optional<NameIndex> index, Set<String> added, Set<String> removed, Map<String, String> properties) {
+    log.info(() -> String.format("Merging %d new and %d deleted npm package names into '%s'", added.size(), removed.size(), file));
+    if (index.isPresent()) {
+      return index.get().update(added, removed, properties);
+    }
+    return NameIndex.write(file, added, properties);
+  }
+
+  private ChangesRaw changesSince(String since, RateLimitRetryConfig retryConfig) {
+    var feed = config.getChangesUrl();
+    try {
+      if (feed.startsWith("file:")) {
+        // A saved response, all of it is applied again each time, which leaves the names as they are
+        try (var reader = Files.newBufferedReader(Path.of(URI.create(feed)))) {
+          return mapper.readValue(reader, ChangesRaw.class);
+        }
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(String.format("Failed to read changes from '%s'", feed), e);
+    }
+
+    var path = String.format("?since=%s&limit=%d", URLEncoder.encode(since, StandardCharsets.UTF_8), config.getBatchSize());
+    return HttpClient.fetchStreaming(new ConnectionInfo(feed), path, retryConfig, reader -> mapper.readValue(reader, ChangesRaw.class));
+  }
+}
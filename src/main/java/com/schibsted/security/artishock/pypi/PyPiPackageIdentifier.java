@@ -4,9 +4,13 @@
 
 package com.schibsted.security.artishock.pypi;
 
+import java.util.Locale;
 import java.util.Objects;
+import java.util.regex.Pattern;
 
 public class PyPiPackageIdentifier {
+  private static final Pattern SEPARATORS = Pattern.compile("[-_.]+");
+
   private final String packageName;
 
   public PyPiPackageIdentifier(String packageName) {
@@ -17,6 +21,17 @@ public class PyPiPackageIdentifier {
     return packageName;
   }
 
+  /**
+   * The name as PyPI compares it, lower case with runs of <code>-</code>, <code>_</code> and <code>.</code> replaced by <code>-</code> (PEP 503)
+   */
+  public String normalized() {
+    return normalize(packageName);
+  }
+
+  public static String normalize(String packageName) {
+    return SEPARATORS.matcher(packageName).replaceAll("-").toLowerCase(Locale.ROOT);
+  }
+
   @Override
   public boolean equals(Object o) {
     if (this == o) return true;
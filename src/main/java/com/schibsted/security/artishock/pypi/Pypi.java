@@ -8,12 +8,14 @@ import com.schibsted.security.artishock.artifactory.ArtifactoryClient;
 import com.schibsted.security.artishock.config.Config;
 import com.schibsted.security.artishock.config.RateLimitRetryConfig;
 import com.schibsted.security.artishock.pypi.client.PyPiClient;
+import com.schibsted.security.artishock.shared.ConcurrentChecker;
 import com.schibsted.security.artishock.shared.ConnectionInfo;
 import com.schibsted.security.artishock.shared.FileReader;
 import com.schibsted.security.artishock.shared.Intersection;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
 public class Pypi {
@@ -46,10 +48,10 @@ public class Pypi {
     return Intersection.cacheIntersection(localPackages, remoteCached);
   }
 
-  public List<PyPiPackageIdentifier> inferredExclude(String local, String remote, RateLimitRetryConfig retryConfig) {
+  public List<PyPiPackageIdentifier> inferredExclude(String local, String remote, boolean localNameIndex, RateLimitRetryConfig retryConfig) {
     var localPackages = pyPiClient.getAllPyPiPackageIdentifierFromIndex(local, retryConfig);
 
-    var upstreamPackages = checkUpstream(localPackages, retryConfig);
+    var upstreamPackages = checkUpstream(localPackages, localNameIndex, retryConfig);
     var remotePackages = checkLocal(remote, localPackages, retryConfig);
 
     upstreamPackages.removeAll(remotePackages);
@@ -57,7 +59,7 @@ public class Pypi {
     return upstreamPackages;
   }
 
-  public List<PyPiPackageIdentifier> notClaimed(String local, Optional<String> excluded, RateLimitRetryConfig retryConfig) {
+  public List<PyPiPackageIdentifier> notClaimed(String local, Optional<String> excluded, boolean localNameIndex, RateLimitRetryConfig retryConfig) {
     var localPackages = pyPiClient.getAllPyPiPackageIdentifierFromIndex(local, retryConfig);
 
     var exclude = new ArrayList<PyPiPackageIdentifier>();
@@ -65,41 +67,39 @@ public class Pypi {
 
     localPackages.removeAll(exclude);
 
-    var upstreamPackages = checkUpstream(localPackages, retryConfig);
+    var upstreamPackages = checkUpstream(localPackages, localNameIndex, retryConfig);
     localPackages.removeAll(upstreamPackages);
 
     return localPackages;
   }
 
-  List<PyPiPackageIdentifier> checkUpstream(List<PyPiPackageIdentifier> local, RateLimitRetryConfig retryConfig) {
-    var result = new ArrayList<PyPiPackageIdentifier>();
-    for (var l : local) {
-      if (existsUpstream(l, retryConfig)) {
-        result.add(l);
-      }
+  List<PyPiPackageIdentifier> checkUpstream(List<PyPiPackageIdentifier> local, boolean localNameIndex, RateLimitRetryConfig retryConfig) {
+    if (localNameIndex) {
+      var upstreamNames = pyPiClient.upstreamNames(retryConfig);
+      return local.stream()
+          .filter(l -> upstreamNames.contains(l.normalized()))
+          .collect(Collectors.toList());
     }
-    return result;
+
+    return ConcurrentChecker.matching(pyPiClient.upstream(), local, retryConfig.getParallelism(), l -> existsUpstream(l, retryConfig));
   }
 
   List<PyPiPackageIdentifier> checkLocal(String repoName, List<PyPiPackageIdentifier> local, RateLimitRetryConfig retryConfig) {
-    var result = new ArrayList<PyPiPackageIdentifier>();
-    for (var l : local) {
-      if (existsInArtifactory(repoName, l, retryConfig)) {
-        result.add(l);
-      }
-    }
-    return result;
+    return ConcurrentChecker.matching(artifactoryPyPi(repoName), local, retryConfig.getParallelism(), l -> existsInArtifactory(repoName, l, retryConfig));
   }
 
-  boolean existsUpstream(PyPiPackageIdentifier packageIdentifier, RateLimitRetryConfig retryConfig) {
+  CompletableFuture<Boolean> existsUpstream(PyPiPackageIdentifier packageIdentifier, RateLimitRetryConfig retryConfig) {
     return pyPiClient.packageExistsCached(pyPiClient.upstream(), packageIdentifier, retryConfig);
   }
 
-  boolean existsInArtifactory(String repo, PyPiPackageIdentifier packageIdentifier, RateLimitRetryConfig retryConfig) {
-    return pyPiClient.packageExistsCached(new ConnectionInfo(config.getArtifactoryUrl() + "/api/pypi/" + repo,
-            config.getArtifactoryUsername(),
-            config.getArtifactoryPassword()),
-        packageIdentifier, retryConfig);
+  CompletableFuture<Boolean> existsInArtifactory(String repo, PyPiPackageIdentifier packageIdentifier, RateLimitRetryConfig retryConfig) {
+    return pyPiClient.packageExistsCached(artifactoryPyPi(repo), packageIdentifier, retryConfig);
+  }
+
+  ConnectionInfo artifactoryPyPi(String repo) {
+    return new ConnectionInfo(config.getArtifactoryUrl() + "/api/pypi/" + repo,
+        config.getArtifactoryUsername(),
+        config.getArtifactoryPassword());
   }
 
   List<PyPiPackageIdentifier> fromFile(String location) {
@@ -8,20 +8,35 @@ import com.schibsted.security.artishock.config.Config;
 import com.schibsted.security.artishock.config.RateLimitRetryConfig;
 import com.schibsted.security.artishock.pypi.PyPiPackageIdentifier;
 import com.schibsted.security.artishock.shared.CacheCategory;
+import com.schibsted.security.artishock.shared.ConditionalResult;
 import com.schibsted.security.artishock.shared.ConnectionInfo;
 import com.schibsted.security.artishock.shared.HttpClient;
+import com.schibsted.security.artishock.shared.NameIndex;
 import com.schibsted.security.artishock.shared.SimpleCache;
+import com.schibsted.security.artishock.shared.Validators;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Supplier;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
-import com.fasterxml.jackson.databind.DeserializationFeature;
-import com.fasterxml.jackson.dataformat.xml.XmlMapper;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 public class PyPiClient {
   private static final Logger log = LogManager.getLogger();
 
+  private static final Pattern ANCHOR = Pattern.compile("<a\\b[^>]*>([^<]*)</a>", Pattern.CASE_INSENSITIVE);
+  private static final String NAME_INDEX_FILE = "pypi-names.idx";
+  private static final Duration NAME_INDEX_CHECK_INTERVAL = Duration.ofDays(1);
+  private static final String ETAG = "etag";
+  private static final String LAST_MODIFIED = "last-modified";
+
   private final Config config;
 
   public PyPiClient(Config config) {
@@ -35,48 +50,87 @@ public class PyPiClient {
   public List<PyPiPackageIdentifier> getAllPyPiPackageIdentifierFromIndex(String repositoryName, RateLimitRetryConfig retryConfig) {
     log.info(() -> "Fetching PyPi package from index in " + repositoryName);
 
-    var raw = getPackagesFromIndex(new ConnectionInfo(config.getArtifactoryUrl() + "/api/pypi/" + repositoryName,
-        config.getArtifactoryUsername(), config.getArtifactoryPassword()), "/simple/", retryConfig);
-
-    var preprocessed = raw.replaceAll("\".*\"", "\"\"")
-        .replace("\n", "")
-        .replaceAll("<br/>", "")
-        .replaceAll("<br />", "")
-        .replaceAll("<head>.*</head>", "");
+    var connectionInfo = new ConnectionInfo(config.getArtifactoryUrl() + "/api/pypi/" + repositoryName,
+        config.getArtifactoryUsername(), config.getArtifactoryPassword());
 
-    var xmlMapper = new XmlMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    // The parsed names are cached rather than the page, and the page is only downloaded again if it changed
+    var names = SimpleCache.getFromCacheOrRevalidate(connectionInfo, "/simple/", CacheCategory.INDEX,
+        validators -> getPackagesFromIndex(connectionInfo, "/simple/", retryConfig, validators).map(n -> String.join("\n", n)));
 
-    try
-    {
-      var r = xmlMapper.readValue(preprocessed, SimpleRaw.class);
+    // TODO consider filtering out names that are not allowed upstream
+    return Arrays.stream(names.split("\n"))
+        .filter(name -> !name.isEmpty())
+        .map(PyPiPackageIdentifier::new)
+        .collect(Collectors.toList());
+  }
 
-      // TODO consider filtering out names that are not allowed upstream
-      return r.body.stream()
-          .map(PyPiPackageIdentifier::new)
-          .collect(Collectors.toList());
-    } catch (Exception e) {
-      throw new RuntimeException(e);
+  /**
+   * Every project name on PyPI, normalized, from a local copy of the upstream simple index. The copy is checked once a
+   * day and only downloaded again if PyPI reports that the index changed. No local names are sent upstream.
+   */
+  public NameIndex upstreamNames(RateLimitRetryConfig retryConfig) {
+    var file = SimpleCache.cacheDirectory().resolve(NAME_INDEX_FILE);
+    var existing = NameIndex.open(file);
+    if (existing.isPresent() && existing.get().getCheckedAt().plus(NAME_INDEX_CHECK_INTERVAL).isAfter(Instant.now())) {
+      return existing.get();
     }
-  }
 
-  public boolean packageExistsCached(ConnectionInfo connectionInfo, PyPiPackageIdentifier packageIdentifier, RateLimitRetryConfig retryConfig) {
-    Supplier<String> f = () -> Boolean.toString(packageExists(connectionInfo, packageIdentifier, retryConfig));
-    var result = SimpleCache.getFromCacheOrExecute(connectionInfo, packageIdentifier.toString(), CacheCategory.PACKAGE_EXISTS, f);
+    log.info(() -> "Fetching all project names from " + upstream().getPrefix());
+    var validators = existing
+        .map(index -> new Validators(index.getProperty(ETAG), index.getProperty(LAST_MODIFIED)))
+        .orElse(Validators.none());
+    var result = getPackagesFromIndex(upstream(), "/simple/", retryConfig, validators);
 
-    if (result.equals("true")) {
-      return true;
-    } else if (result.equals("false")) {
-      return false;
-    } else {
-      throw new RuntimeException(String.format("Must be 'true' or 'false' got '%s'", result));
+    if (result.getValue().isEmpty()) {
+      var index = existing.orElseThrow(() -> new RuntimeException("PyPI answered not modified without a local name index"));
+      index.checked();
+      return index;
     }
+
+    var names = result.getValue().get().stream()
+        .map(PyPiPackageIdentifier::normalize)
+        .collect(Collectors.toList());
+    var properties = new HashMap<String, String>();
+    result.getValidators().getEtag().ifPresent(etag -> properties.put(ETAG, etag));
+    result.getValidators().getLastModified().ifPresent(lastModified -> properties.put(LAST_MODIFIED, lastModified));
+
+    var index = NameIndex.write(file, names, properties);
+    log.info(() -> String.format("Wrote %d project names to '%s'", index.size(), file));
+    return index;
+  }
+
+  public CompletableFuture<Boolean> packageExistsCached(ConnectionInfo connectionInfo, PyPiPackageIdentifier packageIdentifier, RateLimitRetryConfig retryConfig) {
+    Supplier<CompletableFuture<String>> f = () -> packageExists(connectionInfo, packageIdentifier, retryConfig).thenApply(b -> Boolean.toString(b));
+
+    return SimpleCache.getFromCacheOrExecuteAsync(connectionInfo, packageIdentifier.toString(), CacheCategory.PACKAGE_EXISTS, f).thenApply(result -> {
+      if (result.equals("true")) {
+        return true;
+      } else if (result.equals("false")) {
+        return false;
+      } else {
+        throw new RuntimeException(String.format("Must be 'true' or 'false' got '%s'", result));
+      }
+    });
   }
 
-  public boolean packageExists(ConnectionInfo connectionInfo, PyPiPackageIdentifier packageName, RateLimitRetryConfig retryConfig) {
-    return HttpClient.exists(connectionInfo, "/simple/" + packageName.getPackageName() + "/", retryConfig);
+  public CompletableFuture<Boolean> packageExists(ConnectionInfo connectionInfo, PyPiPackageIdentifier packageName, RateLimitRetryConfig retryConfig) {
+    return HttpClient.existsAsync(connectionInfo, "/simple/" + packageName.getPackageName() + "/", retryConfig);
   }
 
-  String getPackagesFromIndex(ConnectionInfo connectionInfo, String path, RateLimitRetryConfig retryConfig) {
-    return HttpClient.fetch(connectionInfo, path, retryConfig);
+  /**
+   * Names are the text of each link in the simple index, read as the index is downloaded since it can be very large
+   */
+  ConditionalResult<List<String>> getPackagesFromIndex(ConnectionInfo connectionInfo, String path, RateLimitRetryConfig retryConfig, Validators validators) {
+    return HttpClient.fetchStreamingIfModified(connectionInfo, path, retryConfig, validators, reader -> {
+      var names = new ArrayList<String>();
+      var scanner = new Scanner(reader);
+      while (scanner.findWithinHorizon(ANCHOR, 0) != null) {
+        names.add(scanner.match().group(1).trim());
+      }
+      if (scanner.ioException() != null) {
+        throw scanner.ioException();
+      }
+      return names;
+    });
   }
 }
@@ -1,11 +0,0 @@
-/*
- * Copyright 2021 Schibsted. Licensed under the terms of the Apache 2.0 license. See LICENSE in the project root.
- */
-
-package com.schibsted.security.artishock.pypi.client;
-
-import java.util.List;
-
-public class SimpleRaw {
-  public List<String> body;
-}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2021 Schibsted. Licensed under the terms of the Apache 2.0 license. See LICENSE in the project root.
+ */
+
+package com.schibsted.security.artishock.shared;
+
+import com.schibsted.security.artishock.config.RateLimitRetryConfig;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Request rate for one host, adjusted with additive increase and multiplicative decrease.
+ * The rate grows by one request per second for every second of successful requests, and is halved on a 429.
+ * Answers to requests sent before the last halving do not change the rate, so a burst of 429s halves it only once.
+ */
+public class AdaptiveRateController {
+  private static final Logger log = LogManager.getLogger();
+
+  private static final double MINIMUM_REQUESTS_PER_SECOND = 0.1;
+  private static final double INCREASE_PER_SECOND = 1;
+  private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+  private static final Map<String, AdaptiveRateController> hosts = new ConcurrentHashMap<>();
+
+  private final String host;
+  private final RateLimiter rateLimiter;
+  private final double maxRequestsPerSecond;
+  // Both guarded by rateLimiter
+  private long decreasedAtNanos;
+  private long increasedAtNanos;
+
+  AdaptiveRateController(String host, double requestsPerSecond, int burst, double maxRequestsPerSecond) {
+    this.host = host;
+    this.rateLimiter = new RateLimiter(requestsPerSecond, burst);
+    this.maxRequestsPerSecond = Math.max(requestsPerSecond, maxRequestsPerSecond);
+    this.decreasedAtNanos = System.nanoTime();
+    this.increasedAtNanos = decreasedAtNanos;
+  }
+
+  public static AdaptiveRateController forHost(String host, RateLimitRetryConfig retryConfig) {
+    return hosts.computeIfAbsent(host, h -> new AdaptiveRateController(h,
+        retryConfig.getRequestsPerSecond(),
+        retryConfig.getBurst(),
+        retryConfig.getMaxRequestsPerSecond()));
+  }
+
+  /**
+   * Takes a request slot, returns how many nanoseconds to wait before sending
+   */
+  public long reserve() {
+    return rateLimiter.reserve();
+  }
+
+  /**
+   * Takes a request slot only if it can be used right away
+   */
+  public boolean tryAcquire() {
+    return rateLimiter.tryAcquire();
+  }
+
+  /**
+   * Raises the rate by the time since the last raise, at most one second's worth so that a success after an idle
+   * period does not jump the rate
+   * @param sentAtNanos System.nanoTime() when the request was sent
+   * @param pause set when the host tells us it has no budget left right now
+   */
+  public void onSuccess(long sentAtNanos, Optional<Duration> pause) {
+    synchronized (rateLimiter) {
+      var now = System.nanoTime();
+      if (sentAtNanos - decreasedAtNanos >= 0) {
+        var seconds = Math.min(NANOS_PER_SECOND, now - increasedAtNanos) / (double) NANOS_PER_SECOND;
+        var rate = rateLimiter.getPermitsPerSecond();
+        rateLimiter.setPermitsPerSecond(Math.min(maxRequestsPerSecond, rate + seconds * INCREASE_PER_SECOND));
+        increasedAtNanos = now;
+      }
+    }
+    pause.ifPresent(this::pauseFor);
+  }
+
+  /**
+   * @param sentAtNanos System.nanoTime() when the request was sent
+   */
+  public void onRateLimited(long sentAtNanos, Optional<Duration> retryAfter) {
+    synchronized (rateLimiter) {
+      // A request sent before the last halving is part of the burst that caused it
+      if (sentAtNanos - decreasedAtNanos >= 0) {
+        var halved = Math.max(MINIMUM_REQUESTS_PER_SECOND, rateLimiter.getPermitsPerSecond() / 2);
+        rateLimiter.setPermitsPerSecond(halved);
+        decreasedAtNanos = System.nanoTime();
+        increasedAtNanos = decreasedAtNanos;
+        log.info(() -> String.format("Rate limited by %s, lowering to %.2f requests per second", host, halved));
+      }
+    }
+    retryAfter.ifPresent(this::pauseFor);
+  }
+
+  private void pauseFor(Duration duration) {
+    log.info(() -> String.format("Pausing requests to %s for %d seconds", host, duration.toSeconds()));
+    rateLimiter.pauseFor(duration.toNanos());
+  }
+}
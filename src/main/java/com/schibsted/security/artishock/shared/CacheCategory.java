@@ -8,7 +8,9 @@ public enum CacheCategory {
   PACKAGE_INFO("/package-info/"),
   SEARCH("/search/"),
   ORG("/org/"),
-  PACKAGE_EXISTS("/package-exists/");
+  PACKAGE_EXISTS("/package-exists/"),
+  INDEX("/index/"),
+  REPOSITORIES("/repositories/");
 
   private final String path;
 
@@ -19,4 +21,11 @@ public enum CacheCategory {
   public String getPath() {
     return path;
   }
+
+  /**
+   * Name used in the config file, like <code>package-exists</code>
+   */
+  public String getName() {
+    return path.replace("/", "");
+  }
 }
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2021 Schibsted. Licensed under the terms of the Apache 2.0 license. See LICENSE in the project root.
+ */
+
+package com.schibsted.security.artishock.shared;
+
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Where cached answers were found during this run
+ */
+public class CacheStats {
+  private final AtomicLong memoryHits = new AtomicLong();
+  private final AtomicLong diskHits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong staleHits = new AtomicLong();
+  private final AtomicLong notModified = new AtomicLong();
+  private final MemoryCache memoryCache;
+
+  CacheStats(MemoryCache memoryCache) {
+    this.memoryCache = memoryCache;
+  }
+
+  /**
+   * Counts of a finished run as saved in the cache directory
+   */
+  public static class Run {
+    public String finishedAt;
+    public long memoryHits;
+    public long diskHits;
+    public long staleHits;
+    public long misses;
+    public long notModified;
+
+    /**
+     * Share of lookups answered from the cache, stale answers included
+     */
+    public double hitRate() {
+      var hits = memoryHits + diskHits;
+      return hits + misses == 0 ? 0 : hits / (double) (hits + misses);
+    }
+  }
+
+  Run toRun(Instant finishedAt) {
+    var run = new Run();
+    run.finishedAt = finishedAt.toString();
+    run.memoryHits = memoryHits.get();
+    run.diskHits = diskHits.get();
+    run.staleHits = staleHits.get();
+    run.misses = misses.get();
+    run.notModified = notModified.get();
+    return run;
+  }
+
+  boolean hasLookups() {
+    return memoryHits.get() + diskHits.get() + misses.get() > 0;
+  }
+
+  void notModified() {
+    notModified.incrementAndGet();
+  }
+
+  void staleHit() {
+    staleHits.incrementAndGet();
+  }
+
+  void memoryHit() {
+    memoryHits.incrementAndGet();
+  }
+
+  void diskHit() {
+    diskHits.incrementAndGet();
+  }
+
+  void miss() {
+    misses.incrementAndGet();
+  }
+
+  public long getMemoryHits() {
+    return memoryHits.get();
+  }
+
+  public long getDiskHits() {
+    return diskHits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%d memory hits, %d disk hits, %d stale hits, %d misses, %d revalidated as not modified, %d entries using %d bytes in memory, %d evicted",
+        memoryHits.get(), diskHits.get(), staleHits.get(), misses.get(), notModified.get(), memoryCache.size(), memoryCache.bytes(), memoryCache.evictions());
+  }
+}
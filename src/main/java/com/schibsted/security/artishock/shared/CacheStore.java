@@ -0,0 +1,833 @@
+/*
+ * Copyright 2021 Schibsted. Licensed under the terms of the Apache 2.0 license. See LICENSE in the project root.
+ */
+
+package com.schibsted.security.artishock.shared;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * All cached answers in one append-only file. Each record holds repo, category, key, value, when it was written,
+ * since when the value has been the same and the HTTP validators of the response, a later record for the same key replaces the earlier one. The file is
+ * memory-mapped for reads, a region at a time as it grows, and an index of the newest record per key is kept in memory. When most of the file is
+ * replaced or expired records it is compacted on open.
+ *
+ * Several processes can share the file. Appends and compaction hold an exclusive lock on the file, readers take no
+ * lock and pick up records appended by others as they read, skipping any record whose checksum does not match yet.
+ * Compaction writes a new file and renames it over the old one, and a process that still has the old file open
+ * opens the new one when it notices.
+ *
+ * The file starts with a magic number and the format version. Record layout: int length of the rest of the record,
+ * long written at and long value since in epoch millis, then repo, category name, key, value, ETag and Last-Modified
+ * each as an int byte count followed by UTF-8 bytes, empty when there is no validator, and last the CRC32 of the
+ * record after the length. A record that renews an unchanged value has -1 as the value byte count, followed by the
+ * long position and int byte count of the value in an earlier record. Files from the first version have no header and
+ * no value since, records from the second version have no validators, records from the third version have no checksum
+ * and records from the fourth version have no renewals.
+ */
+public class CacheStore {
+  private static final Logger log = LogManager.getLogger();
+
+  private static final String FILE_NAME = "cache.log";
+  private static final long COMPACT_MIN_BYTES = 1024 * 1024;
+  // Once there are this many mapped regions the file is mapped again as one, which can be at most MAX_FILE_BYTES
+  private static final int MAX_MAPPED_REGIONS = 16;
+  private static final long MAX_FILE_BYTES = Integer.MAX_VALUE;
+  private static final int MAGIC = 0x41534843;
+  private static final int VERSION = 5;
+  private static final int VALUE_REFERENCE = -1;
+  private static final int HEADER_BYTES = 2 * Integer.BYTES;
+  private static final long REPLACED_CHECK_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private final Path file;
+  private final Duration retention;
+  private final Map<String, Entry> index = new HashMap<>();
+  private FileChannel channel;
+  private Object fileKey;
+  // Incremented each time the file is opened, positions in entries are only valid for the file they were read from
+  private int generation;
+  // Mapped regions by the position they start at, each starts at a record and holds whole records up to mappedEnd
+  private final TreeMap<Long, MappedByteBuffer> mapped = new TreeMap<>();
+  private long mappedEnd;
+  private long liveBytes;
+  private int version;
+  private int dataStart;
+  // Records before this position are in the index
+  private long indexedEnd;
+  private long replacedCheckedNanos;
+
+  private CacheStore(Path file, Duration retention) {
+    this.file = file;
+    this.retention = retention;
+  }
+
+  private interface LockedAction<T> {
+    T run() throws IOException;
+  }
+
+  public static class Entry {
+    private final String repo;
+    private final CacheCategory category;
+    private final String key;
+    private final Instant writtenAt;
+    private final Instant since;
+    private final Validators validators;
+    private final int generation;
+    private final long valuePosition;
+    private final int valueLength;
+    private final int recordLength;
+
+    Entry(String repo, CacheCategory category, String key, Instant writtenAt, Instant since, Validators validators,
+          int generation, long valuePosition, int valueLength, int recordLength) {
+      this.repo = repo;
+      this.category = category;
+      this.key = key;
+      this.writtenAt = writtenAt;
+      this.since = since;
+      this.validators = validators;
+      this.generation = generation;
+      this.valuePosition = valuePosition;
+      this.valueLength = valueLength;
+      this.recordLength = recordLength;
+    }
+
+    public String getRepo() {
+      return repo;
+    }
+
+    public CacheCategory getCategory() {
+      return category;
+    }
+
+    public String getKey() {
+      return key;
+    }
+
+    public Instant getWrittenAt() {
+      return writtenAt;
+    }
+
+    /**
+     * When the value was first written, later writes of the same value keep this
+     */
+    public Instant getSince() {
+      return since;
+    }
+
+    public Validators getValidators() {
+      return validators;
+    }
+
+    /**
+     * Size of the record in the cache file, with the value it refers to if it renews an earlier record
+     */
+    public int getBytes() {
+      return recordLength;
+    }
+  }
+
+  /**
+   * Opens the store in <code>directory</code>, moving entries from the old one-file-per-key layout into it first
+   */
+  public static CacheStore open(Path directory, Duration retention) {
+    SimpleCache.createDirectoryIfNonexistent(directory);
+    var store = new CacheStore(directory.resolve(FILE_NAME), retention);
+    try {
+      store.openChannel();
+      // Compaction reopens the file without the lock, so each step that may compact takes it anew
+      store.locked(() -> {
+        store.dropExpired();
+        if (store.version < VERSION) {
+          store.compact();
+        }
+        return null;
+      });
+      store.locked(() -> {
+        store.migrate(directory);
+        return null;
+      });
+      store.locked(() -> {
+        var size = store.channel.size();
+        if (size > COMPACT_MIN_BYTES && store.liveBytes * 2 < size || size > MAX_FILE_BYTES / 4 * 3 && store.liveBytes < size) {
+          store.compact();
+        }
+        return null;
+      });
+    } catch (IOException e) {
+      throw new RuntimeException(String.format("Failed to open cache '%s'", store.file), e);
+    }
+    return store;
+  }
+
+  public synchronized Optional<Entry> get(String repo, CacheCategory category, String key) {
+    refresh();
+    return current(repo, category, key);
+  }
+
+  private Optional<Entry> current(String repo, CacheCategory category, String key) {
+    return Optional.ofNullable(index.get(indexKey(repo, category, key)));
+  }
+
+  public synchronized String read(Entry entry) {
+    // The file was replaced since the entry was looked up, the newest record for the key is somewhere else now
+    var current = entry.generation == generation
+        ? entry
+        : current(entry.repo, entry.category, entry.key)
+            .orElseThrow(() -> new RuntimeException(String.format("'%s' is no longer cached for %s", entry.key, entry.repo)));
+    try {
+      var region = mapped.floorEntry(current.valuePosition);
+      if (region == null || region.getKey() + region.getValue().capacity() < current.valuePosition + current.valueLength) {
+        // Appended by this process since the last mapping
+        mapUpTo(indexedEnd);
+        mappedEnd = indexedEnd;
+        region = mapped.floorEntry(current.valuePosition);
+      }
+      var bytes = new byte[current.valueLength];
+      region.getValue().get((int) (current.valuePosition - region.getKey()), bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+    } catch (IOException e) {
+      throw new RuntimeException(String.format("Failed to read cached data from '%s'", file), e);
+    }
+  }
+
+  public synchronized Entry put(String repo, CacheCategory category, String key, String value, Validators validators) {
+    try {
+      return locked(() -> {
+        var writtenAt = Instant.now();
+        var since = current(repo, category, key)
+            .filter(previous -> read(previous).equals(value))
+            .map(Entry::getSince)
+            .orElse(writtenAt);
+
+        append(repo, category, key, value, writtenAt, since, validators);
+        return index.get(indexKey(repo, category, key));
+      });
+    } catch (IOException e) {
+      throw new RuntimeException(String.format("Failed to write cache to '%s'", file), e);
+    }
+  }
+
+  /**
+   * Like put with the value of <code>previous</code>, for when the server said it is unchanged. Only the new write time
+   * and validators are appended, unless the key was written again or removed in the meantime.
+   */
+  public synchronized Entry renew(Entry previous, String value, Validators validators) {
+    try {
+      return locked(() -> {
+        var writtenAt = Instant.now();
+        var current = current(previous.repo, previous.category, previous.key)
+            .filter(c -> c.writtenAt.equals(previous.writtenAt));
+        if (current.isEmpty()) {
+          append(previous.repo, previous.category, previous.key, value, writtenAt, previous.since, validators);
+        } else {
+          append(encodeRenewal(current.get(), writtenAt, validators));
+        }
+        return index.get(indexKey(previous.repo, previous.category, previous.key));
+      });
+    } catch (IOException e) {
+      throw new RuntimeException(String.format("Failed to write cache to '%s'", file), e);
+    }
+  }
+
+  /**
+   * Must hold the lock, with the index caught up to the end of the file
+   */
+  private void append(String repo, CacheCategory category, String key, String value, Instant writtenAt, Instant since,
+                      Validators validators) throws IOException {
+    append(encode(repo, category, key, value, writtenAt, since, validators));
+  }
+
+  private void append(ByteBuffer record) throws IOException {
+    var start = channel.size();
+    if (start + record.remaining() > MAX_FILE_BYTES) {
+      throw new RuntimeException(String.format("Cache '%s' is full at %d bytes, run cache-gc or delete the file", file, start));
+    }
+    var position = start;
+    while (record.hasRemaining()) {
+      position += channel.write(record, position);
+    }
+    index(record.rewind(), start, VERSION);
+    indexedEnd = position;
+  }
+
+  /**
+   * Runs <code>action</code> holding the lock on the file, after reading what other processes appended
+   */
+  private <T> T locked(LockedAction<T> action) throws IOException {
+    while (true) {
+      var lock = channel.lock();
+      try {
+        if (!replaced()) {
+          catchUp();
+          truncateIncomplete();
+          return action.run();
+        }
+      } finally {
+        // Compaction closes the channel, which releases the lock
+        if (lock.isValid()) {
+          lock.release();
+        }
+      }
+      reopen();
+    }
+  }
+
+  /**
+   * Reads records appended by other processes, and opens the file again if another process compacted it
+   */
+  private void refresh() {
+    try {
+      if (System.nanoTime() - replacedCheckedNanos > REPLACED_CHECK_NANOS) {
+        replacedCheckedNanos = System.nanoTime();
+        if (replaced()) {
+          reopen();
+        }
+      }
+      catchUp();
+    } catch (IOException e) {
+      throw new RuntimeException(String.format("Failed to read cache '%s'", file), e);
+    }
+  }
+
+  /**
+   * True if the file at the path is no longer the one that is open, because it was compacted or deleted
+   */
+  private boolean replaced() throws IOException {
+    if (!Files.exists(file)) {
+      return true;
+    }
+    var key = Files.readAttributes(file, BasicFileAttributes.class).fileKey();
+    // Without file keys, as on Windows, a replaced file is not noticed
+    return key != null && !key.equals(fileKey);
+  }
+
+  private void reopen() throws IOException {
+    log.info(() -> String.format("Cache '%s' was replaced by another process, opening it again", file));
+    channel.close();
+    SimpleCache.createDirectoryIfNonexistent(file.getParent());
+    openChannel();
+    catchUp();
+  }
+
+  private static ByteBuffer encode(String repo, CacheCategory category, String key, String value, Instant writtenAt, Instant since,
+                                   Validators validators) {
+    return encode(repo, category, key, value.getBytes(StandardCharsets.UTF_8), -1, -1, writtenAt, since, validators);
+  }
+
+  /**
+   * A record that points at the value of <code>entry</code> instead of holding it
+   */
+  private static ByteBuffer encodeRenewal(Entry entry, Instant writtenAt, Validators validators) {
+    return encode(entry.repo, entry.category, entry.key, null, entry.valuePosition, entry.valueLength, writtenAt, entry.since,
+        validators);
+  }
+
+  /**
+   * @param value null to refer to the value at <code>valuePosition</code> instead, which must be in the same file
+   */
+  private static ByteBuffer encode(String repo, CacheCategory category, String key, byte[] value, long valuePosition,
+                                   int valueLength, Instant writtenAt, Instant since, Validators validators) {
+    var head = new byte[][] {
+        repo.getBytes(StandardCharsets.UTF_8),
+        category.name().getBytes(StandardCharsets.UTF_8),
+        key.getBytes(StandardCharsets.UTF_8)
+    };
+    var tail = new byte[][] {
+        validators.getEtag().orElse("").getBytes(StandardCharsets.UTF_8),
+        validators.getLastModified().orElse("").getBytes(StandardCharsets.UTF_8)
+    };
+    var valueBytes = value != null ? Integer.BYTES + value.length : Integer.BYTES + Long.BYTES + Integer.BYTES;
+    var length = 2 * Long.BYTES + Stream.of(head, tail).flatMap(Arrays::stream).mapToInt(f -> Integer.BYTES + f.length).sum()
+        + valueBytes + Integer.BYTES;
+
+    var record = ByteBuffer.allocate(Integer.BYTES + length);
+    record.putInt(length);
+    record.putLong(writtenAt.toEpochMilli());
+    record.putLong(since.toEpochMilli());
+    for (var field : head) {
+      record.putInt(field.length);
+      record.put(field);
+    }
+    if (value != null) {
+      record.putInt(value.length);
+      record.put(value);
+    } else {
+      record.putInt(VALUE_REFERENCE);
+      record.putLong(valuePosition);
+      record.putInt(valueLength);
+    }
+    for (var field : tail) {
+      record.putInt(field.length);
+      record.put(field);
+    }
+    var checksum = new CRC32();
+    checksum.update(record.array(), Integer.BYTES, length - Integer.BYTES);
+    record.putInt((int) checksum.getValue());
+    return record.flip();
+  }
+
+  /**
+   * False if the checksum of the record starting at <code>start</code> does not match, as when it is still being written
+   */
+  private static boolean intact(ByteBuffer buffer, int start, int recordVersion) {
+    if (recordVersion < 4) {
+      return true;
+    }
+    var length = buffer.getInt(start);
+    if (length < Integer.BYTES) {
+      return false;
+    }
+    var checksum = new CRC32();
+    checksum.update(buffer.slice(start + Integer.BYTES, length - Integer.BYTES));
+    return (int) checksum.getValue() == buffer.getInt(start + length);
+  }
+
+  /**
+   * Adds the record starting at the buffer position, which is at <code>filePosition</code> in the file, to the index
+   */
+  private void index(ByteBuffer record, long filePosition, int recordVersion) {
+    decode(record, filePosition, recordVersion, generation).ifPresent(entry -> {
+      var replaced = index.put(indexKey(entry.repo, entry.category, entry.key), entry);
+      liveBytes += entry.recordLength - (replaced != null ? replaced.recordLength : 0);
+    });
+  }
+
+  /**
+   * Reads the record starting at the buffer position and moves past it, empty if its category no longer exists
+   */
+  private static Optional<Entry> decode(ByteBuffer record, long filePosition, int recordVersion, int generation) {
+    var start = record.position();
+    var recordLength = Integer.BYTES + record.getInt();
+    var writtenAt = Instant.ofEpochMilli(record.getLong());
+    var since = recordVersion >= 2 ? Instant.ofEpochMilli(record.getLong()) : writtenAt;
+    var repo = string(record);
+    var categoryName = string(record);
+    var key = string(record);
+    var valueLength = record.getInt();
+    long valuePosition;
+    var bytes = recordLength;
+    if (recordVersion >= 5 && valueLength == VALUE_REFERENCE) {
+      valuePosition = record.getLong();
+      valueLength = record.getInt();
+      if (valuePosition < 0 || valueLength < 0 || valuePosition + valueLength > filePosition) {
+        throw new RuntimeException(String.format("Cache record at %d refers to a value outside the records before it", filePosition));
+      }
+      bytes += valueLength;
+    } else {
+      valuePosition = filePosition + record.position() - start;
+      record.position(record.position() + valueLength);
+    }
+    var validators = recordVersion >= 3
+        ? new Validators(nonEmpty(string(record)), nonEmpty(string(record)))
+        : Validators.none();
+    record.position(start + recordLength);
+
+    CacheCategory category;
+    try {
+      category = CacheCategory.valueOf(categoryName);
+    } catch (IllegalArgumentException e) {
+      // Written by a version with a category that no longer exists
+      return Optional.empty();
+    }
+
+    return Optional.of(new Entry(repo, category, key, writtenAt, since, validators, generation, valuePosition, valueLength, bytes));
+  }
+
+  /**
+   * The newest entry for every key
+   */
+  public synchronized List<Entry> entries() {
+    refresh();
+    return new ArrayList<>(index.values());
+  }
+
+  /**
+   * Size of the cache file, including replaced records not yet compacted away
+   */
+  public synchronized long fileBytes() {
+    try {
+      return channel.size();
+    } catch (IOException e) {
+      throw new RuntimeException(String.format("Failed to read size of '%s'", file), e);
+    }
+  }
+
+  /**
+   * Drops the entries matching <code>remove</code> and compacts the file, returns how many were dropped
+   */
+  public synchronized int removeIf(Predicate<Entry> remove) {
+    try {
+      return locked(() -> {
+        var removed = index.values().stream()
+            .filter(remove)
+            .collect(Collectors.toList());
+        for (var entry : removed) {
+          index.remove(indexKey(entry.repo, entry.category, entry.key));
+          liveBytes -= entry.recordLength;
+        }
+
+        compact();
+        return removed.size();
+      });
+    } catch (IOException e) {
+      throw new RuntimeException(String.format("Failed to compact cache '%s'", file), e);
+    }
+  }
+
+  /**
+   * Writes all entries that have not expired as a gzipped file in the cache file format
+   */
+  public synchronized int exportTo(Path snapshot) {
+    refresh();
+    var entries = index.values().stream()
+        .filter(entry -> !expired(entry))
+        .sorted(Comparator.comparing(e -> e.writtenAt))
+        .collect(Collectors.toList());
+
+    try (var out = new GZIPOutputStream(Files.newOutputStream(snapshot))) {
+      out.write(header().array());
+      for (var entry : entries) {
+        out.write(encode(entry.repo, entry.category, entry.key, read(entry), entry.writtenAt, entry.since, entry.validators).array());
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(String.format("Failed to write cache snapshot '%s'", snapshot), e);
+    }
+    return entries.size();
+  }
+
+  /**
+   * Adds the entries of a snapshot that are newer than what is cached here, returns how many were added
+   */
+  public synchronized int importFrom(Path snapshot) {
+    try {
+      return locked(() -> importLocked(snapshot));
+    } catch (IOException e) {
+      throw new RuntimeException(String.format("Failed to import cache snapshot '%s' into '%s'", snapshot, file), e);
+    }
+  }
+
+  private int importLocked(Path snapshot) throws IOException {
+    var imported = 0;
+    try (var in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(snapshot))))) {
+      if (in.readInt() != MAGIC) {
+        throw new RuntimeException(String.format("'%s' is not a cache snapshot", snapshot));
+      }
+      var snapshotVersion = in.readInt();
+      if (snapshotVersion > VERSION) {
+        throw new RuntimeException(String.format("Cache snapshot '%s' was written by a newer version of artishock", snapshot));
+      }
+
+      while (true) {
+        int length;
+        try {
+          length = in.readInt();
+        } catch (EOFException e) {
+          break;
+        }
+        // A record could not have been read from a cache file any bigger
+        if (length < Integer.BYTES || length > MAX_FILE_BYTES - HEADER_BYTES - Integer.BYTES) {
+          throw new RuntimeException(String.format("Cache snapshot '%s' is corrupt", snapshot));
+        }
+        // Read in steps, so that a wrong length in a short file does not allocate it all up front
+        var bytes = in.readNBytes(length);
+        if (bytes.length < length) {
+          throw new RuntimeException(String.format("Cache snapshot '%s' is corrupt", snapshot));
+        }
+        var record = ByteBuffer.allocate(Integer.BYTES + length).putInt(length).put(bytes);
+
+        if (!intact(record, 0, snapshotVersion)) {
+          throw new RuntimeException(String.format("Cache snapshot '%s' is corrupt", snapshot));
+        }
+        Optional<Entry> decoded;
+        try {
+          // Positions are within the record, not in the file
+          decoded = decode(record.rewind(), 0, snapshotVersion, -1);
+        } catch (RuntimeException e) {
+          throw new RuntimeException(String.format("Cache snapshot '%s' is corrupt", snapshot), e);
+        }
+        if (decoded.isEmpty() || expired(decoded.get())) {
+          continue;
+        }
+        var entry = decoded.get();
+        var existing = current(entry.repo, entry.category, entry.key);
+        if (existing.isPresent() && !existing.get().writtenAt.isBefore(entry.writtenAt)) {
+          continue;
+        }
+
+        var value = new String(record.array(), (int) entry.valuePosition, entry.valueLength, StandardCharsets.UTF_8);
+        append(entry.repo, entry.category, entry.key, value, entry.writtenAt, entry.since, entry.validators);
+        imported++;
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(String.format("Failed to read cache snapshot '%s'", snapshot), e);
+    }
+    return imported;
+  }
+
+  private static String string(ByteBuffer buffer) {
+    var length = buffer.getInt();
+    if (length < 0 || length > buffer.remaining()) {
+      throw new RuntimeException(String.format("Cache record has a field of %d bytes with %d bytes left", length, buffer.remaining()));
+    }
+    var bytes = new byte[length];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static Optional<String> nonEmpty(String s) {
+    return s.isEmpty() ? Optional.empty() : Optional.of(s);
+  }
+
+  private static String indexKey(String repo, CacheCategory category, String key) {
+    return repo + category.getPath() + key;
+  }
+
+  /**
+   * Opens the file and starts an empty index, <code>catchUp</code> fills it
+   */
+  private void openChannel() throws IOException {
+    channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    fileKey = Files.readAttributes(file, BasicFileAttributes.class).fileKey();
+    generation++;
+    mapped.clear();
+    mappedEnd = 0;
+    index.clear();
+    liveBytes = 0;
+
+    var header = ByteBuffer.allocate(HEADER_BYTES);
+    // Another process may be creating the file at the same time
+    var lock = channel.lock();
+    try {
+      if (channel.size() == 0) {
+        channel.write(header(), 0);
+      }
+      channel.read(header, 0);
+    } finally {
+      lock.release();
+    }
+    header.flip();
+    if (header.remaining() == HEADER_BYTES && header.getInt() == MAGIC) {
+      version = header.getInt();
+      dataStart = HEADER_BYTES;
+      if (version > VERSION) {
+        throw new RuntimeException(String.format("Cache '%s' was written by a newer version of artishock", file));
+      }
+    } else {
+      version = 1;
+      dataStart = 0;
+    }
+    indexedEnd = dataStart;
+  }
+
+  private static ByteBuffer header() {
+    return ByteBuffer.allocate(HEADER_BYTES).putInt(MAGIC).putInt(VERSION).flip();
+  }
+
+  /**
+   * Adds the complete records after <code>indexedEnd</code> to the index, a record still being written by another
+   * process is read on a later call
+   */
+  private void catchUp() throws IOException {
+    var size = channel.size();
+    if (size > MAX_FILE_BYTES) {
+      throw new RuntimeException(String.format("Cache '%s' is larger than the %d bytes it can be read at, delete the file", file, MAX_FILE_BYTES));
+    }
+    if (size - indexedEnd < Integer.BYTES) {
+      return;
+    }
+
+    var regionStart = mapUpTo(size);
+    var region = mapped.get(regionStart);
+    var end = indexedEnd;
+    while (size - end >= Integer.BYTES) {
+      var at = (int) (end - regionStart);
+      var length = region.getInt(at);
+      if (length <= 0 || length > size - end - Integer.BYTES || !intact(region, at, version)) {
+        break;
+      }
+      try {
+        index(region.position(at), end, version);
+      } catch (RuntimeException e) {
+        break;
+      }
+      end += Integer.BYTES + length;
+    }
+    indexedEnd = end;
+    // A record still being written is mapped again with the next region
+    mappedEnd = end;
+  }
+
+  /**
+   * Maps from <code>mappedEnd</code> up to <code>end</code>, or all of it again once the file is mapped in many regions,
+   * returns where the new region starts
+   */
+  private long mapUpTo(long end) throws IOException {
+    if (mapped.size() >= MAX_MAPPED_REGIONS) {
+      mapped.clear();
+      mappedEnd = 0;
+    }
+    var start = mappedEnd;
+    mapped.put(start, channel.map(FileChannel.MapMode.READ_ONLY, start, end - start));
+    return start;
+  }
+
+  /**
+   * Must hold the lock, so that nothing after the indexed records is being written
+   */
+  private void truncateIncomplete() throws IOException {
+    var size = channel.size();
+    if (indexedEnd < size) {
+      // A write that was cut short, everything before it is intact
+      var dropped = size - indexedEnd;
+      log.info(() -> String.format("Dropping %d bytes of incomplete cache records from '%s'", dropped, file));
+      channel.truncate(indexedEnd);
+      mapped.clear();
+      mappedEnd = 0;
+    }
+  }
+
+  private void dropExpired() {
+    var expired = index.values().stream()
+        .filter(this::expired)
+        .collect(Collectors.toList());
+    for (var entry : expired) {
+      index.remove(indexKey(entry.repo, entry.category, entry.key));
+      liveBytes -= entry.recordLength;
+    }
+  }
+
+  private boolean expired(Entry entry) {
+    return entry.writtenAt.plus(retention).isBefore(Instant.now());
+  }
+
+  /**
+   * Writes the live records to a new file and swaps it in. Must hold the lock, which is released when the old file is
+   * closed, so it is the last thing done while holding it.
+   */
+  private void compact() throws IOException {
+    var size = channel.size();
+    var live = liveBytes;
+    log.info(() -> String.format("Compacting cache '%s', %d of %d bytes in use", file, live, size));
+
+    var entries = index.values().stream()
+        .sorted(Comparator.comparing(e -> e.writtenAt))
+        .collect(Collectors.toList());
+
+    var compacted = file.resolveSibling(FILE_NAME + ".compact");
+    try (var out = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+      out.write(header());
+      for (var entry : entries) {
+        var record = encode(entry.repo, entry.category, entry.key, read(entry), entry.writtenAt, entry.since, entry.validators);
+        while (record.hasRemaining()) {
+          out.write(record);
+        }
+      }
+      out.force(true);
+    }
+
+    // Other processes waiting for the lock get it on the old file, and see that it was replaced
+    Files.move(compacted, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    channel.close();
+    openChannel();
+    catchUp();
+  }
+
+  /**
+   * Entries from before the single file store were kept as cache/&lt;repo&gt;/&lt;category&gt;/&lt;key&gt;, each in its own file
+   */
+  private void migrate(Path directory) throws IOException {
+    List<Path> oldRepoDirectories;
+    try (var paths = Files.list(directory)) {
+      // Other directories the user may keep here are left alone
+      oldRepoDirectories = paths
+          .filter(path -> Arrays.stream(CacheCategory.values()).anyMatch(c -> Files.isDirectory(path.resolve(c.getName()))))
+          .collect(Collectors.toList());
+    }
+    if (oldRepoDirectories.isEmpty()) {
+      return;
+    }
+
+    log.info(() -> String.format("Moving cache entries in '%s' into '%s'", directory, file));
+    var migrated = 0;
+    for (var repoDirectory : oldRepoDirectories) {
+      var repo = urlDecode(repoDirectory.getFileName().toString());
+      for (var category : CacheCategory.values()) {
+        var categoryDirectory = repoDirectory.resolve(category.getName());
+        if (!Files.isDirectory(categoryDirectory)) {
+          continue;
+        }
+        try (var files = Files.list(categoryDirectory)) {
+          for (var path : files.collect(Collectors.toList())) {
+            var writtenAt = Files.getLastModifiedTime(path).toInstant();
+            if (writtenAt.plus(retention).isAfter(Instant.now())) {
+              append(repo, category, urlDecode(path.getFileName().toString()), Files.readString(path), writtenAt, writtenAt,
+                  Validators.none());
+              migrated++;
+            }
+          }
+        }
+      }
+    }
+    channel.force(true);
+
+    for (var repoDirectory : oldRepoDirectories) {
+      for (var category : CacheCategory.values()) {
+        var categoryDirectory = repoDirectory.resolve(category.getName());
+        if (Files.isDirectory(categoryDirectory)) {
+          deleteRecursively(categoryDirectory);
+        }
+      }
+      try (var rest = Files.list(repoDirectory)) {
+        if (rest.findAny().isEmpty()) {
+          Files.delete(repoDirectory);
+        }
+      }
+    }
+    var count = migrated;
+    log.info(() -> String.format("Moved %d cache entries", count));
+  }
+
+  private static String urlDecode(String s) {
+    return URLDecoder.decode(s, StandardCharsets.UTF_8);
+  }
+
+  private static void deleteRecursively(Path path) throws IOException {
+    try (var paths = Files.walk(path)) {
+      for (var p : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+        Files.delete(p);
+      }
+    }
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2021 Schibsted. Licensed under the terms of the Apache 2.0 license. See LICENSE in the project root.
+ */
+
+package com.schibsted.security.artishock.shared;
+
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * What a cache category holds: entries, their size in the cache file and how old they are
+ */
+public class CacheUsage {
+  /**
+   * Upper limits of the age groups, the last group holds everything older
+   */
+  public static final List<Duration> AGE_LIMITS = List.of(Duration.ofDays(1), Duration.ofDays(7), Duration.ofDays(30), Duration.ofDays(90));
+
+  private final CacheCategory category;
+  private final long[] ages = new long[AGE_LIMITS.size() + 1];
+  private long entries;
+  private long bytes;
+  private long stale;
+  private long expired;
+
+  CacheUsage(CacheCategory category) {
+    this.category = category;
+  }
+
+  void add(long bytes, Duration age, boolean stale, boolean expired) {
+    this.entries++;
+    this.bytes += bytes;
+    if (stale) {
+      this.stale++;
+    }
+    if (expired) {
+      this.expired++;
+    }
+
+    var group = 0;
+    while (group < AGE_LIMITS.size() && age.compareTo(AGE_LIMITS.get(group)) >= 0) {
+      group++;
+    }
+    ages[group]++;
+  }
+
+  public CacheCategory getCategory() {
+    return category;
+  }
+
+  public long getEntries() {
+    return entries;
+  }
+
+  public long getBytes() {
+    return bytes;
+  }
+
+  public long getStale() {
+    return stale;
+  }
+
+  /**
+   * Entries that can no longer be used and are removed by cache-gc
+   */
+  public long getExpired() {
+    return expired;
+  }
+
+  /**
+   * Number of entries in each age group, see AGE_LIMITS
+   */
+  public long[] getAges() {
+    return ages.clone();
+  }
+}
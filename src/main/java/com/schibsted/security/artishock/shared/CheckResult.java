@@ -0,0 +1,46 @@
+/*
+ * Copyright 2021 Schibsted. Licensed under the terms of the Apache 2.0 license. See LICENSE in the project root.
+ */
+
+package com.schibsted.security.artishock.shared;
+
+import java.util.Optional;
+
+/**
+ * Outcome of checking a single item, either a result or the error that prevented one.
+ */
+public class CheckResult<T> {
+  private final T item;
+  private final Optional<Boolean> result;
+  private final Optional<RuntimeException> error;
+
+  private CheckResult(T item, Optional<Boolean> result, Optional<RuntimeException> error) {
+    this.item = item;
+    this.result = result;
+    this.error = error;
+  }
+
+  public static <T> CheckResult<T> success(T item, boolean result) {
+    return new CheckResult<>(item, Optional.of(result), Optional.empty());
+  }
+
+  public static <T> CheckResult<T> failure(T item, RuntimeException error) {
+    return new CheckResult<>(item, Optional.empty(), Optional.of(error));
+  }
+
+  public T getItem() {
+    return item;
+  }
+
+  public Optional<Boolean> getResult() {
+    return result;
+  }
+
+  public Optional<RuntimeException> getError() {
+    return error;
+  }
+
+  public boolean isTrue() {
+    return result.orElse(false);
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2021 Schibsted. Licensed under the terms of the Apache 2.0 license. See LICENSE in the project root.
+ */
+
+package com.schibsted.security.artishock.shared;
+
+import com.schibsted.security.artishock.config.CircuitBreakerConfig;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Failure rate of the most recent calls to one host. Errors, 5xx responses and slow calls count as failures.
+ * When too many fail the breaker opens and requests fail right away. Once the open period is over a single probe
+ * is let through, which closes the breaker if it succeeds and opens it again for twice as long if it does not.
+ */
+public class CircuitBreaker {
+  private static final Logger log = LogManager.getLogger();
+
+  private static final Duration MAX_OPEN = Duration.ofMinutes(5);
+  private static final Duration PROBE_WAIT = Duration.ofSeconds(1);
+
+  private static final Map<String, CircuitBreaker> hosts = new ConcurrentHashMap<>();
+
+  private enum State { CLOSED, OPEN, HALF_OPEN }
+
+  private final String host;
+  private final CircuitBreakerConfig config;
+  private final boolean[] failures;
+  private int calls;
+  private int next;
+  private int failureCount;
+  private State state = State.CLOSED;
+  private long openUntilNanos;
+  private int trips;
+  private boolean probeInFlight;
+
+  CircuitBreaker(String host, CircuitBreakerConfig config) {
+    this.host = host;
+    this.config = config;
+    this.failures = new boolean[config.getWindowSize()];
+  }
+
+  public static CircuitBreaker forHost(String host, CircuitBreakerConfig config) {
+    return hosts.computeIfAbsent(host, h -> new CircuitBreaker(h, config));
+  }
+
+  /**
+   * Throws if the request must not be sent. Every call that is let through must be followed by onSuccess or onFailure,
+   * or by release if it was never sent.
+   */
+  public synchronized void acquire() {
+    if (state == State.OPEN) {
+      if (trips >= config.getMaxTrips()) {
+        throw new HostUnavailableException(host, Optional.empty());
+      }
+      var remaining = openUntilNanos - System.nanoTime();
+      if (remaining > 0) {
+        throw new HostUnavailableException(host, Optional.of(Duration.ofNanos(remaining)));
+      }
+      state = State.HALF_OPEN;
+      log.info(() -> String.format("Probing %s", host));
+    }
+
+    if (state == State.HALF_OPEN) {
+      if (probeInFlight) {
+        throw new HostUnavailableException(host, Optional.of(PROBE_WAIT));
+      }
+      probeInFlight = true;
+    }
+  }
+
+  /**
+   * For a call that was let through but failed before it was sent, so that it does not hold the probe
+   */
+  public synchronized void release() {
+    probeInFlight = false;
+  }
+
+  public void onSuccess(Duration latency) {
+    if (latency.toSeconds() >= config.getSlowCallSeconds()) {
+      log.info(() -> String.format("Slow response from %s after %d seconds", host, latency.toSeconds()));
+      onFailure();
+      return;
+    }
+
+    synchronized (this) {
+      if (state == State.HALF_OPEN) {
+        log.info(() -> String.format("%s recovered, resuming requests", host));
+        state = State.CLOSED;
+        probeInFlight = false;
+        trips = 0;
+        clear();
+      } else {
+        record(false);
+      }
+    }
+  }
+
+  public synchronized void onFailure() {
+    if (state == State.HALF_OPEN) {
+      probeInFlight = false;
+      open();
+    } else if (state == State.CLOSED) {
+      record(true);
+      if (calls >= config.getMinimumCalls() && failureCount * 100 >= config.getFailureRatePercent() * calls) {
+        open();
+      }
+    }
+  }
+
+  private void record(boolean failed) {
+    if (calls == failures.length) {
+      failureCount -= failures[next] ? 1 : 0;
+    } else {
+      calls++;
+    }
+    failures[next] = failed;
+    failureCount += failed ? 1 : 0;
+    next = (next + 1) % failures.length;
+  }
+
+  private void clear() {
+    calls = 0;
+    next = 0;
+    failureCount = 0;
+  }
+
+  private void open() {
+    trips++;
+    var open = Duration.ofSeconds(config.getOpenSeconds()).multipliedBy(1L << Math.min(trips - 1, 16));
+    var capped = open.compareTo(MAX_OPEN) > 0 ? MAX_OPEN : open;
+    state = State.OPEN;
+    openUntilNanos = System.nanoTime() + capped.toNanos();
+    clear();
+    log.info(() -> String.format("Too many failures from %s, pausing requests for %d seconds", host, capped.toSeconds()));
+  }
+}
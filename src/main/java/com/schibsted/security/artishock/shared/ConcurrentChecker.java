@@ -0,0 +1,111 @@
+/*
+ * Copyright 2021 Schibsted. Licensed under the terms of the Apache 2.0 license. See LICENSE in the project root.
+ */
+
+package com.schibsted.security.artishock.shared;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Runs an asynchronous check against a host for many items at once, with at most <code>parallelism</code> checks in flight per host.
+ * Results keep the order of the input and an item that fails does not stop the others.
+ * While the circuit breaker for the host is open the items in flight wait for it, and are checked again when it lets requests through.
+ */
+public class ConcurrentChecker {
+  private static final Logger log = LogManager.getLogger();
+
+  // Checks against the same host with the same parallelism share the permits, a different parallelism gets its own
+  private static final Map<String, Semaphore> hostPermits = new ConcurrentHashMap<>();
+
+  public static <T> List<CheckResult<T>> check(ConnectionInfo connectionInfo, List<T> items, int parallelism, Function<T, CompletableFuture<Boolean>> check) {
+    if (parallelism < 1) {
+      throw new RuntimeException(String.format("Parallelism must be at least 1, got %d", parallelism));
+    }
+
+    var host = host(connectionInfo);
+    var permits = hostPermits.computeIfAbsent(host + "/" + parallelism, h -> new Semaphore(parallelism));
+
+    log.info(() -> String.format("Checking %d items against %s with parallelism %d", items.size(), host, parallelism));
+
+    var futures = new ArrayList<CompletableFuture<CheckResult<T>>>();
+    try {
+      for (var item : items) {
+        permits.acquire();
+        futures.add(start(item, check).whenComplete((r, e) -> permits.release()));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while checking against " + host, e);
+    }
+
+    return futures.stream()
+        .map(CompletableFuture::join)
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * Items for which the check is true, in input order. Throws after all items are checked if any of them failed.
+   */
+  public static <T> List<T> matching(ConnectionInfo connectionInfo, List<T> items, int parallelism, Function<T, CompletableFuture<Boolean>> check) {
+    var results = check(connectionInfo, items, parallelism, check);
+
+    var failures = results.stream()
+        .filter(r -> r.getError().isPresent())
+        .collect(Collectors.toList());
+
+    if (!failures.isEmpty()) {
+      var first = failures.get(0);
+      throw new RuntimeException(String.format("Failed to check %d of %d items against %s, first failure '%s': %s",
+          failures.size(), results.size(), host(connectionInfo), first.getItem(), first.getError().get().getMessage()),
+          first.getError().get());
+    }
+
+    return results.stream()
+        .filter(CheckResult::isTrue)
+        .map(CheckResult::getItem)
+        .collect(Collectors.toList());
+  }
+
+  private static <T> CompletableFuture<CheckResult<T>> start(T item, Function<T, CompletableFuture<Boolean>> check) {
+    CompletableFuture<Boolean> future;
+    try {
+      future = check.apply(item);
+    } catch (RuntimeException e) {
+      future = CompletableFuture.failedFuture(e);
+    }
+
+    return future.handle((result, e) -> {
+      if (e != null) {
+        var error = Futures.unwrap(e);
+        if (error instanceof HostUnavailableException && ((HostUnavailableException) error).getRetryIn().isPresent()) {
+          return resumeAfter(((HostUnavailableException) error).getRetryIn().get(), item, check);
+        }
+        log.info(() -> String.format("Check failed for '%s': %s", item, error.getMessage()));
+        return CompletableFuture.completedFuture(CheckResult.failure(item, error));
+      }
+      return CompletableFuture.completedFuture(CheckResult.success(item, result));
+    }).thenCompose(r -> r);
+  }
+
+  private static <T> CompletableFuture<CheckResult<T>> resumeAfter(Duration pause, T item, Function<T, CompletableFuture<Boolean>> check) {
+    var delayed = CompletableFuture.delayedExecutor(pause.toMillis(), TimeUnit.MILLISECONDS);
+    return CompletableFuture.supplyAsync(() -> start(item, check), delayed).thenCompose(r -> r);
+  }
+
+  static String host(ConnectionInfo connectionInfo) {
+    var host = URI.create(connectionInfo.getPrefix()).getHost();
+    return host != null ? host : connectionInfo.getPrefix();
+  }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2021 Schibsted. Licensed under the terms of the Apache 2.0 license. See LICENSE in the project root.
+ */
+
+package com.schibsted.security.artishock.shared;
+
+import java.util.Optional;
+import java.util.function.Function;
+
+/**
+ * Answer to a conditional request, either a new value with its validators or not modified
+ */
+public class ConditionalResult<T> {
+  private final Optional<T> value;
+  private final Validators validators;
+
+  private ConditionalResult(Optional<T> value, Validators validators) {
+    this.value = value;
+    this.validators = validators;
+  }
+
+  public static <T> ConditionalResult<T> modified(T value, Validators validators) {
+    return new ConditionalResult<>(Optional.of(value), validators);
+  }
+
+  public static <T> ConditionalResult<T> notModified(Validators validators) {
+    return new ConditionalResult<>(Optional.empty(), validators);
+  }
+
+  public <U> ConditionalResult<U> map(Function<T, U> f) {
+    return new ConditionalResult<>(value.map(f), validators);
+  }
+
+  /**
+   * Empty when the server answered 304 Not Modified
+   */
+  public Optional<T> getValue() {
+    return value;
+  }
+
+  public Validators getValidators() {
+    return validators;
+  }
+}
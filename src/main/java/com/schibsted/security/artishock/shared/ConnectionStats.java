@@ -0,0 +1,80 @@
+/*
+ * Copyright 2021 Schibsted. Licensed under the terms of the Apache 2.0 license. See LICENSE in the project root.
+ */
+
+package com.schibsted.security.artishock.shared;
+
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.EventListener;
+import okhttp3.Protocol;
+
+/**
+ * Counts how often calls got a pooled connection rather than opening a new one
+ */
+public class ConnectionStats extends EventListener {
+  private final AtomicLong calls = new AtomicLong();
+  private final AtomicLong connectionsReused = new AtomicLong();
+  private final AtomicLong connectionsOpened = new AtomicLong();
+  private final AtomicLong tlsHandshakes = new AtomicLong();
+  private final AtomicLong http2Acquired = new AtomicLong();
+
+  private final Set<Connection> seen = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+
+  @Override
+  public void callStart(Call call) {
+    calls.incrementAndGet();
+  }
+
+  @Override
+  public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+    connectionsOpened.incrementAndGet();
+  }
+
+  @Override
+  public void secureConnectStart(Call call) {
+    tlsHandshakes.incrementAndGet();
+  }
+
+  @Override
+  public void connectionAcquired(Call call, Connection connection) {
+    if (!seen.add(connection)) {
+      connectionsReused.incrementAndGet();
+    }
+    if (connection.protocol() == Protocol.HTTP_2) {
+      http2Acquired.incrementAndGet();
+    }
+  }
+
+  public long getCalls() {
+    return calls.get();
+  }
+
+  public long getConnectionsOpened() {
+    return connectionsOpened.get();
+  }
+
+  public long getConnectionsReused() {
+    return connectionsReused.get();
+  }
+
+  public long getTlsHandshakes() {
+    return tlsHandshakes.get();
+  }
+
+  public long getHttp2Acquired() {
+    return http2Acquired.get();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%d calls, %d connections opened, %d reused, %d TLS handshakes, %d over HTTP/2",
+        getCalls(), getConnectionsOpened(), getConnectionsReused(), getTlsHandshakes(), getHttp2Acquired());
+  }
+}
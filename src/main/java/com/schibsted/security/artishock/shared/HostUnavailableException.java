@@ -0,0 +1,37 @@
+/*
+ * Copyright 2021 Schibsted. Licensed under the terms of the Apache 2.0 license. See LICENSE in the project root.
+ */
+
+package com.schibsted.security.artishock.shared;
+
+import java.time.Duration;
+import java.util.Optional;
+
+/**
+ * Thrown without sending a request when the circuit breaker for the host is open
+ */
+public class HostUnavailableException extends RuntimeException {
+  private static final long serialVersionUID = 1L;
+
+  private final String host;
+  private final Optional<Duration> retryIn;
+
+  public HostUnavailableException(String host, Optional<Duration> retryIn) {
+    super(retryIn
+        .map(d -> String.format("%s is failing, not sending requests for %d seconds", host, d.toSeconds()))
+        .orElse(String.format("%s is failing, giving up", host)));
+    this.host = host;
+    this.retryIn = retryIn;
+  }
+
+  public String getHost() {
+    return host;
+  }
+
+  /**
+   * Empty when the host has failed too many times to be worth waiting for
+   */
+  public Optional<Duration> getRetryIn() {
+    return retryIn;
+  }
+}
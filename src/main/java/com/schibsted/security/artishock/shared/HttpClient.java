@@ -5,12 +5,38 @@
 package com.schibsted.security.artishock.shared;
 
 import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.schibsted.security.artishock.config.CircuitBreakerConfig;
 import com.schibsted.security.artishock.config.RateLimitRetryConfig;
+import com.schibsted.security.artishock.config.TransportConfig;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.ConnectionPool;
 import okhttp3.Credentials;
+import okhttp3.Dispatcher;
+import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
 import okhttp3.Request;
+import okhttp3.RequestBody;
 import okhttp3.Response;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -18,11 +44,66 @@ import org.apache.logging.log4j.Logger;
 public class HttpClient {
   private static final Logger log = LogManager.getLogger();
 
-  private static final OkHttpClient client = new OkHttpClient.Builder()
-      .connectTimeout(50, TimeUnit.SECONDS)
-      .readTimeout(300, TimeUnit.SECONDS)
-      .writeTimeout(50, TimeUnit.SECONDS)
-      .build();
+  private static final Duration MAX_BACKOFF = Duration.ofMinutes(2);
+
+  private static final Set<String> hostsRejectingHead = ConcurrentHashMap.newKeySet();
+
+  // Rate limit waits and retry backoff are scheduled here rather than blocking a thread
+  private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+      new ThreadFactoryBuilder().setNameFormat("artishock-http-scheduler").setDaemon(true).build());
+
+  private static final ConnectionStats connectionStats = new ConnectionStats();
+
+  private static TransportConfig transportConfig = new TransportConfig(null);
+  private static CircuitBreakerConfig circuitBreakerConfig = new CircuitBreakerConfig(null);
+  private static OkHttpClient client;
+
+  /**
+   * Must be called before the first request for the settings to apply to the shared client
+   */
+  public static synchronized void configure(TransportConfig transportConfig, CircuitBreakerConfig circuitBreakerConfig) {
+    HttpClient.transportConfig = transportConfig;
+    HttpClient.circuitBreakerConfig = circuitBreakerConfig;
+    if (client != null) {
+      // Calls already running finish, the threads and idle connections of the old client are not needed after that
+      client.dispatcher().executorService().shutdown();
+      client.connectionPool().evictAll();
+      client = null;
+    }
+  }
+
+  public static ConnectionStats getConnectionStats() {
+    return connectionStats;
+  }
+
+  private static synchronized OkHttpClient client() {
+    if (client == null) {
+      client = buildClient(transportConfig);
+    }
+    return client;
+  }
+
+  private static OkHttpClient buildClient(TransportConfig transportConfig) {
+    // Daemon threads so that idle dispatcher threads do not keep the CLI alive after a command is done
+    var dispatcher = new Dispatcher(Executors.newCachedThreadPool(
+        new ThreadFactoryBuilder().setNameFormat("artishock-http-%d").setDaemon(true).build()));
+    dispatcher.setMaxRequests(transportConfig.getMaxRequests());
+    dispatcher.setMaxRequestsPerHost(transportConfig.getMaxRequestsPerHost());
+
+    var builder = new OkHttpClient.Builder()
+        .dispatcher(dispatcher)
+        .connectionPool(new ConnectionPool(transportConfig.getMaxIdleConnections(), transportConfig.getKeepAliveSeconds(), TimeUnit.SECONDS))
+        .eventListener(connectionStats)
+        .connectTimeout(transportConfig.getConnectTimeoutSeconds(), TimeUnit.SECONDS)
+        .readTimeout(transportConfig.getReadTimeoutSeconds(), TimeUnit.SECONDS)
+        .writeTimeout(transportConfig.getWriteTimeoutSeconds(), TimeUnit.SECONDS);
+
+    if (!transportConfig.isHttp2()) {
+      builder.protocols(List.of(Protocol.HTTP_1_1));
+    }
+
+    return builder.build();
+  }
 
   public static Request prepareRequest(ConnectionInfo connectionInfo, String path) {
     var url = connectionInfo.getPrefix() + path;
@@ -32,42 +113,239 @@ public class HttpClient {
     if (connectionInfo.getUsername().isPresent() && connectionInfo.getPassword().isPresent()) {
       var credentials = Credentials.basic(connectionInfo.getUsername().get(), connectionInfo.getPassword().get());
       requestBuilder.addHeader("Authorization", credentials);
+    }
+
+    return requestBuilder.build();
+  }
+
+  /**
+   * Completes with the first response that is not a 429, the caller must close it.
+   * Fails with HostUnavailableException without sending anything while the circuit breaker for the host is open.
+   */
+  private static CompletableFuture<Response> executeAsync(Request request, RateLimitRetryConfig retryConfig) {
+    var result = new CompletableFuture<Response>();
+    attempt(request, retryConfig, rateController(request, retryConfig), 0, result);
+    return result;
+  }
+
+  private static void attempt(Request request, RateLimitRetryConfig retryConfig, Optional<AdaptiveRateController> rateController,
+                              int retry, CompletableFuture<Response> result) {
+    var circuitBreaker = CircuitBreaker.forHost(request.url().host(), circuitBreakerConfig);
+    try {
+      circuitBreaker.acquire();
+    } catch (HostUnavailableException e) {
+      result.completeExceptionally(e);
+      return;
+    }
+
+    try {
+      var waitNanos = rateController.map(AdaptiveRateController::reserve).orElse(0L);
+      schedule(waitNanos, result, () -> send(request, retryConfig, rateController, circuitBreaker, retry, result));
+    } catch (RuntimeException e) {
+      circuitBreaker.release();
+      throw e;
+    }
+  }
+
+  /**
+   * Sends the request, and a second copy if hedging is enabled and the first is slower than usual for the host.
+   * The first response wins, the other call is cancelled.
+   */
+  private static void send(Request request, RateLimitRetryConfig retryConfig, Optional<AdaptiveRateController> rateController,
+                           CircuitBreaker circuitBreaker, int retry, CompletableFuture<Response> result) {
+    var hedger = RequestHedger.forHost(request.url().host());
+    var calls = new CopyOnWriteArrayList<Call>();
+    var settled = new AtomicBoolean();
+    var outstanding = new AtomicInteger(1);
+    var started = System.nanoTime();
+
+    var callback = new Callback() {
+      @Override
+      public void onFailure(Call call, IOException e) {
+        // A hedge still in flight may yet succeed
+        if (outstanding.decrementAndGet() == 0 && settled.compareAndSet(false, true)) {
+          circuitBreaker.onFailure();
+          result.completeExceptionally(new RuntimeException("Failed to fetch " + request.url(), e));
+        }
+      }
+
+      @Override
+      public void onResponse(Call call, Response response) {
+        if (!settled.compareAndSet(false, true)) {
+          response.close();
+          return;
+        }
+        var latency = Duration.ofNanos(System.nanoTime() - started);
+        hedger.record(latency);
+        if (response.code() >= 500) {
+          circuitBreaker.onFailure();
+        } else {
+          circuitBreaker.onSuccess(latency);
+        }
+        calls.stream().filter(c -> c != call).forEach(Call::cancel);
+
+        // OkHttp only logs what a callback throws
+        try {
+          handleResponse(request, retryConfig, rateController, retry, started, result, response);
+        } catch (RuntimeException e) {
+          response.close();
+          result.completeExceptionally(e);
+        }
+      }
+    };
+
+    log.info(() -> String.format("Fetching %s %s", request.method(), request.url()));
+    try {
+      hedger.onRequest();
+      var call = client().newCall(request);
+      calls.add(call);
+      call.enqueue(callback);
+    } catch (RuntimeException e) {
+      // The callback only runs for a call that was enqueued
+      circuitBreaker.release();
+      throw e;
+    }
+
+    if (retryConfig.getHedgePercentile().isPresent() && isIdempotent(request)) {
+      hedger.hedgeDelay(retryConfig.getHedgePercentile().get()).ifPresent(delay -> schedule(delay.toNanos(), result, () -> {
+        if (settled.get() || !hedger.tryHedge(rateController)) {
+          return;
+        }
+        outstanding.incrementAndGet();
+        if (settled.get()) {
+          outstanding.decrementAndGet();
+          return;
+        }
+        log.info(() -> String.format("Hedging %s %s after %d ms", request.method(), request.url(), delay.toMillis()));
+        var hedge = client().newCall(request);
+        calls.add(hedge);
+        hedge.enqueue(callback);
+      }));
+    }
+  }
+
+  private static boolean isIdempotent(Request request) {
+    return request.method().equals("GET") || request.method().equals("HEAD");
+  }
+
+  private static void handleResponse(Request request, RateLimitRetryConfig retryConfig, Optional<AdaptiveRateController> rateController,
+                                     int retry, long sentAtNanos, CompletableFuture<Response> result, Response response) {
+    if (response.code() == 429) {
+      var retryAfter = retryAfter(response);
+      response.close();
+      rateController.ifPresent(c -> c.onRateLimited(sentAtNanos, retryAfter));
+
+      var nextRetry = retry + 1;
+      if (nextRetry >= retryConfig.getRetries()) {
+        result.completeExceptionally(new RuntimeException("more than " + retryConfig.getRetries() + " retries for " + request.url()));
+      } else {
+        schedule(backoff(nextRetry, retryAfter, retryConfig).toNanos(), result,
+            () -> attempt(request, retryConfig, rateController, nextRetry, result));
+      }
     } else {
-      // External request: be polite
+      rateController.ifPresent(c -> c.onSuccess(sentAtNanos, rateLimitReset(response)));
       try {
-        Thread.sleep(1000);
-      } catch (InterruptedException e) {
-        // do nothing
+        throwIfUnauthorized(response);
+        result.complete(response);
+      } catch (RuntimeException e) {
+        result.completeExceptionally(e);
       }
     }
+  }
 
-    return requestBuilder.build();
+  /**
+   * Runs <code>runnable</code> after the delay, failing <code>result</code> if it throws, as nothing else would see the error
+   */
+  private static void schedule(long delayNanos, CompletableFuture<?> result, Runnable runnable) {
+    Runnable guarded = () -> {
+      try {
+        runnable.run();
+      } catch (RuntimeException e) {
+        result.completeExceptionally(e);
+      }
+    };
+    if (delayNanos <= 0) {
+      guarded.run();
+    } else {
+      scheduler.schedule(guarded, delayNanos, TimeUnit.NANOSECONDS);
+    }
   }
 
-  private static Response execute(Request request, RateLimitRetryConfig retryConfig) {
-    log.info(() -> "Fetching " + request.url());
+  /**
+   * External requests are rate limited per host to be polite, our own Artifactory is not throttled
+   */
+  private static Optional<AdaptiveRateController> rateController(Request request, RateLimitRetryConfig retryConfig) {
+    if (request.header("Authorization") == null) {
+      return Optional.of(AdaptiveRateController.forHost(request.url().host(), retryConfig));
+    }
+    return Optional.empty();
+  }
+
+  /**
+   * Exponential backoff from the configured pause with jitter, but never shorter than what the server asked for
+   */
+  static Duration backoff(int retry, Optional<Duration> retryAfter, RateLimitRetryConfig retryConfig) {
+    var exponential = Duration.ofSeconds(retryConfig.getPauseSeconds()).multipliedBy(1L << Math.min(retry - 1, 16));
+    var capped = exponential.compareTo(MAX_BACKOFF) > 0 ? MAX_BACKOFF : exponential;
+    var jittered = capped.dividedBy(2).plusMillis(ThreadLocalRandom.current().nextLong(capped.dividedBy(2).toMillis() + 1));
+
+    if (retryAfter.isPresent() && retryAfter.get().compareTo(jittered) > 0) {
+      return retryAfter.get();
+    }
+    return jittered;
+  }
 
-    int retry = 0;
-    do {
+  /**
+   * Retry-After as seconds or an HTTP date, falling back to the X-RateLimit-Reset header
+   */
+  static Optional<Duration> retryAfter(Response response) {
+    var retryAfter = response.header("Retry-After");
+    if (retryAfter != null) {
       try {
-        var response = client.newCall(request).execute();
-        if (response.code() == 429) {
-          retry++;
-          try {
-            Thread.sleep(retryConfig.getPauseSeconds() * 1000);
-          } catch (InterruptedException ignore) {
-          }
-        } else {
-          throwIfUnauthorized(response);
+        return Optional.of(Duration.ofSeconds(Long.parseLong(retryAfter.trim())));
+      } catch (NumberFormatException ignore) {
+      }
+      try {
+        var date = ZonedDateTime.parse(retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+        return Optional.of(nonNegative(Duration.between(Instant.now(), date.toInstant())));
+      } catch (DateTimeParseException ignore) {
+      }
+    }
 
-          return response;
-        }
-      } catch (IOException e) {
-        throw new RuntimeException("Failed to fetch " + request.url(), e);
+    return resetHeader(response);
+  }
+
+  /**
+   * Set when the host reports that the current rate limit window is used up
+   */
+  static Optional<Duration> rateLimitReset(Response response) {
+    var remaining = response.header("X-RateLimit-Remaining");
+    if (remaining != null && remaining.trim().equals("0")) {
+      return resetHeader(response);
+    }
+    return Optional.empty();
+  }
+
+  private static Optional<Duration> resetHeader(Response response) {
+    var reset = response.header("X-RateLimit-Reset");
+    if (reset == null) {
+      return Optional.empty();
+    }
+
+    try {
+      var value = Long.parseLong(reset.trim());
+      // Some hosts send an epoch timestamp, others the number of seconds left in the window
+      if (value > 1_000_000_000L) {
+        return Optional.of(nonNegative(Duration.between(Instant.now(), Instant.ofEpochSecond(value))));
       }
-    } while (retry < retryConfig.getRetries());
+      return Optional.of(Duration.ofSeconds(value));
+    } catch (NumberFormatException e) {
+      return Optional.empty();
+    }
+  }
 
-    throw new RuntimeException("more than " + retryConfig.getRetries() + " retries for " + request.url());
+  private static Duration nonNegative(Duration duration) {
+    return duration.isNegative() ? Duration.ZERO : duration;
   }
 
   private static void throwIfUnauthorized(Response response) {
@@ -78,35 +356,169 @@ public class HttpClient {
   }
 
   public static String fetch(ConnectionInfo connectionInfo, String path, RateLimitRetryConfig retryConfig) {
+    return Futures.join(fetchAsync(connectionInfo, path, retryConfig));
+  }
+
+  public static CompletableFuture<String> fetchAsync(ConnectionInfo connectionInfo, String path, RateLimitRetryConfig retryConfig) {
     var request = prepareRequest(connectionInfo, path);
 
-    try (var response = execute(request, retryConfig)) {
-      if (!response.isSuccessful()) {
-        throw new RuntimeException("Download not successful from " + request.url());
+    return executeAsync(request, retryConfig).thenApply(r -> {
+      try (var response = r) {
+        return bodyString(request, response);
       }
-      var body = response.body();
-      if (body == null) {
-        throw new RuntimeException("Failed to get body from " + request.url());
+    });
+  }
+
+  /**
+   * Like fetch, but empty rather than an error when the response is 404
+   */
+  public static Optional<String> fetchIfExists(ConnectionInfo connectionInfo, String path, RateLimitRetryConfig retryConfig) {
+    var request = prepareRequest(connectionInfo, path);
+
+    return Futures.join(executeAsync(request, retryConfig).thenApply(r -> {
+      try (var response = r) {
+        if (response.code() == 404) {
+          return Optional.empty();
+        }
+        return Optional.of(bodyString(request, response));
       }
-      return body.string();
+    }));
+  }
+
+  /**
+   * Like fetch, but hands the body to <code>reader</code> as it is downloaded instead of holding all of it in memory
+   */
+  public static <T> T fetchStreaming(ConnectionInfo connectionInfo, String path, RateLimitRetryConfig retryConfig, ResponseReader<T> reader) {
+    return fetchStreamingIfModified(connectionInfo, path, retryConfig, Validators.none(), reader).getValue()
+        .orElseThrow(() -> new RuntimeException("Not modified answer to unconditional request for " + path));
+  }
+
+  /**
+   * Conditional fetchStreaming, <code>reader</code> is not called if the server answers 304 Not Modified
+   */
+  public static <T> ConditionalResult<T> fetchStreamingIfModified(ConnectionInfo connectionInfo, String path, RateLimitRetryConfig retryConfig,
+                                                                 Validators validators, ResponseReader<T> reader) {
+    var request = validators.addTo(prepareRequest(connectionInfo, path));
+
+    try (var response = Futures.join(executeAsync(request, retryConfig))) {
+      if (response.code() == 304) {
+        log.info(() -> String.format("Not modified %s", request.url()));
+        return ConditionalResult.notModified(Validators.from(response));
+      }
+      return ConditionalResult.modified(readBody(request, response, reader), Validators.from(response));
+    }
+  }
+
+  /**
+   * Like fetchStreaming, but empty rather than an error when the response is 403 or 404,
+   * for APIs that may be closed to the user or not know the path
+   */
+  public static <T> Optional<T> fetchStreamingIfAvailable(ConnectionInfo connectionInfo, String path, RateLimitRetryConfig retryConfig,
+                                                          ResponseReader<T> reader) {
+    var request = prepareRequest(connectionInfo, path);
+
+    try (var response = Futures.join(executeAsync(request, retryConfig))) {
+      if (response.code() == 403 || response.code() == 404) {
+        log.info(() -> String.format("Got %d for %s %s", response.code(), request.method(), request.url()));
+        return Optional.empty();
+      }
+      return Optional.of(readBody(request, response, reader));
+    }
+  }
+
+  /**
+   * POST <code>content</code> and hand the response body to <code>reader</code> as it is downloaded.
+   * Empty rather than an error when the response is 403, for APIs that may be closed to the user, or 400, for queries
+   * that the server version does not support.
+   */
+  public static <T> Optional<T> postStreamingIfAllowed(ConnectionInfo connectionInfo, String path, MediaType contentType, String content,
+                                                       RateLimitRetryConfig retryConfig, ResponseReader<T> reader) {
+    var request = prepareRequest(connectionInfo, path).newBuilder()
+        .post(RequestBody.create(content, contentType))
+        .build();
+
+    try (var response = Futures.join(executeAsync(request, retryConfig))) {
+      if (response.code() == 403 || response.code() == 400) {
+        log.info(() -> String.format("Refused with %d: %s %s", response.code(), request.method(), request.url()));
+        return Optional.empty();
+      }
+      return Optional.of(readBody(request, response, reader));
+    }
+  }
+
+  private static <T> T readBody(Request request, Response response, ResponseReader<T> reader) {
+    if (!response.isSuccessful()) {
+      throw new RuntimeException("Download not successful from " + request.url());
+    }
+    var body = response.body();
+    if (body == null) {
+      throw new RuntimeException("Failed to get body from " + request.url());
+    }
+    try (var charStream = body.charStream()) {
+      return reader.read(charStream);
     } catch (IOException e) {
+      throw new RuntimeException("Failed to read body from " + request.url(), e);
+    }
+  }
+
+  private static String bodyString(Request request, Response response) {
+    if (!response.isSuccessful()) {
+      throw new RuntimeException("Download not successful from " + request.url());
+    }
+    var body = response.body();
+    if (body == null) {
       throw new RuntimeException("Failed to get body from " + request.url());
     }
+    try {
+      return body.string();
+    } catch (IOException e) {
+      throw new RuntimeException("Failed to get body from " + request.url(), e);
+    }
   }
 
   /**
-   * Returns true if response is 200, false if response is 404, throws otherwise
+   * Returns true if response is 200, false if response is 404, throws otherwise.
+   * Uses HEAD so the body is never transferred, hosts that reject HEAD get a GET where the body is discarded unread.
    */
   public static boolean exists(ConnectionInfo connectionInfo, String path, RateLimitRetryConfig retryConfig) {
+    return Futures.join(existsAsync(connectionInfo, path, retryConfig));
+  }
+
+  public static CompletableFuture<Boolean> existsAsync(ConnectionInfo connectionInfo, String path, RateLimitRetryConfig retryConfig) {
     var request = prepareRequest(connectionInfo, path);
+    var host = request.url().host();
+
+    if (hostsRejectingHead.contains(host)) {
+      return existsAsync(request, retryConfig);
+    }
 
-    try (var response = execute(request, retryConfig)) {
-      if (response.code() == 200) {
-        return true;
-      } else if (response.code() == 404) {
-        return false;
+    var headRequest = request.newBuilder().head().build();
+    return executeAsync(headRequest, retryConfig).thenCompose(r -> {
+      try (var response = r) {
+        if (response.code() != 405 && response.code() != 501) {
+          return CompletableFuture.completedFuture(existsFromCode(headRequest, response));
+        }
       }
-      throw new RuntimeException(String.format("Expected code '200' or '404' for '%s', got '%d'", request.url(), response.code()));
+      log.info(() -> String.format("%s does not support HEAD, falling back to GET", host));
+      hostsRejectingHead.add(host);
+      return existsAsync(request, retryConfig);
+    });
+  }
+
+  private static CompletableFuture<Boolean> existsAsync(Request request, RateLimitRetryConfig retryConfig) {
+    return executeAsync(request, retryConfig).thenApply(r -> {
+      try (var response = r) {
+        return existsFromCode(request, response);
+      }
+    });
+  }
+
+  private static boolean existsFromCode(Request request, Response response) {
+    if (response.code() == 200) {
+      return true;
+    } else if (response.code() == 404) {
+      return false;
     }
+    throw new RuntimeException(String.format("Expected code '200' or '404' for %s '%s', got '%d'", request.method(), request.url(), response.code()));
   }
 }
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2021 Schibsted. Licensed under the terms of the Apache 2.0 license. See LICENSE in the project root.
+ */
+
+package com.schibsted.security.artishock.shared;
+
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Optional;
+
+/**
+ * Least recently used cached answers, bounded by number of entries and an estimate of their size in bytes
+ */
+public class MemoryCache {
+  // Object headers and map entry, on top of the characters in key and value
+  private static final int ENTRY_OVERHEAD_BYTES = 96;
+
+  private final int maxEntries;
+  private final long maxBytes;
+  private final LinkedHashMap<String, Value> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long bytes;
+  private long evictions;
+
+  static class Value {
+    private final String value;
+    private final Instant writtenAt;
+    private final Instant since;
+    private final long bytes;
+
+    Value(String key, String value, Instant writtenAt, Instant since) {
+      this.value = value;
+      this.writtenAt = writtenAt;
+      this.since = since;
+      this.bytes = ENTRY_OVERHEAD_BYTES + 2L * (key.length() + value.length());
+    }
+
+    String getValue() {
+      return value;
+    }
+
+    Instant getWrittenAt() {
+      return writtenAt;
+    }
+
+    Instant getSince() {
+      return since;
+    }
+  }
+
+  MemoryCache(int maxEntries, long maxBytes) {
+    this.maxEntries = maxEntries;
+    this.maxBytes = maxBytes;
+  }
+
+  synchronized Optional<Value> get(String key) {
+    return Optional.ofNullable(entries.get(key));
+  }
+
+  synchronized void put(String key, String value, Instant writtenAt, Instant since) {
+    var added = new Value(key, value, writtenAt, since);
+    if (added.bytes > maxBytes) {
+      return;
+    }
+
+    var replaced = entries.put(key, added);
+    bytes += added.bytes - (replaced != null ? replaced.bytes : 0);
+
+    var eldest = entries.entrySet().iterator();
+    while (entries.size() > maxEntries || bytes > maxBytes) {
+      bytes -= eldest.next().getValue().bytes;
+      eldest.remove();
+      evictions++;
+    }
+  }
+
+  synchronized int size() {
+    return entries.size();
+  }
+
+  synchronized long bytes() {
+    return bytes;
+  }
+
+  synchronized long evictions() {
+    return evictions;
+  }
+}
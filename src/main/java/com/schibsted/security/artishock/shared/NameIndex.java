@@ -0,0 +1,444 @@
+/*
+ * Copyright 2021 Schibsted. Licensed under the terms of the Apache 2.0 license. See LICENSE in the project root.
+ */
+
+package com.schibsted.security.artishock.shared;
+
+import com.google.common.collect.Iterators;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A sorted set of names in a memory-mapped file, small enough to hold every package name of a public registry. Names
+ * are front-coded in blocks: the first name of a block is stored in full and each following name as the length of the
+ * prefix it shares with the one before and the rest. Lookups binary search the first names of the blocks and scan one
+ * block. Names are compared as UTF-8 bytes and must be normalized by the caller.
+ *
+ * An index is written in one pass over sorted names, so that a large one can be updated by merging in changes
+ * without holding all names in memory. Each write goes to a new numbered file next to the index path, as a file that is
+ * mapped cannot be replaced on Windows, and the highest number is the current index.
+ *
+ * File layout: int magic, int version, int count of properties followed by each key and value as an int byte count
+ * and UTF-8 bytes, then the data, then an int offset from the start of the data for each block, and last int count of
+ * names, int count of blocks, int position of the data and int position of the offsets. In the data lengths are
+ * varints, and names and suffixes UTF-8 bytes.
+ */
+public class NameIndex {
+  private static final Logger log = LogManager.getLogger();
+
+  private static final int MAGIC = 0x41534e49;
+  private static final int VERSION = 2;
+  private static final int TRAILER_BYTES = 4 * Integer.BYTES;
+  private static final int BLOCK_SIZE = 16;
+
+  private final Path file;
+  // The numbered file this index was read from
+  private final Path version;
+  private final ByteBuffer buffer;
+  private final Map<String, String> properties;
+  private final int size;
+  private final int blocks;
+  private final int offsetsStart;
+  private final int dataStart;
+
+  private NameIndex(Path file, Path version, ByteBuffer buffer) {
+    this.file = file;
+    this.version = version;
+    this.buffer = buffer;
+
+    if (buffer.getInt(0) != MAGIC || buffer.getInt(Integer.BYTES) != VERSION) {
+      throw new RuntimeException(String.format("'%s' is not a name index of this version of artishock", version));
+    }
+    var position = 2 * Integer.BYTES;
+    var propertyCount = buffer.getInt(position);
+    position += Integer.BYTES;
+    this.properties = new HashMap<>();
+    for (var i = 0; i < propertyCount; i++) {
+      var key = string(position);
+      position += Integer.BYTES + buffer.getInt(position);
+      var value = string(position);
+      position += Integer.BYTES + buffer.getInt(position);
+      properties.put(key, value);
+    }
+    var trailer = buffer.capacity() - TRAILER_BYTES;
+    this.size = buffer.getInt(trailer);
+    this.blocks = buffer.getInt(trailer + Integer.BYTES);
+    this.dataStart = buffer.getInt(trailer + 2 * Integer.BYTES);
+    this.offsetsStart = buffer.getInt(trailer + 3 * Integer.BYTES);
+  }
+
+  /**
+   * Empty if there is no index at <code>file</code> or it cannot be read, in which case it should be written again
+   */
+  public static Optional<NameIndex> open(Path file) {
+    List<Path> versions;
+    try {
+      versions = versions(file);
+    } catch (IOException e) {
+      log.info(() -> String.format("Ignoring name index '%s': %s", file, e.getMessage()));
+      return Optional.empty();
+    }
+    if (versions.isEmpty()) {
+      return Optional.empty();
+    }
+    return open(file, versions.get(versions.size() - 1));
+  }
+
+  private static Optional<NameIndex> open(Path file, Path version) {
+    try (var channel = FileChannel.open(version, StandardOpenOption.READ)) {
+      return Optional.of(new NameIndex(file, version, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())));
+    } catch (IOException | RuntimeException e) {
+      log.info(() -> String.format("Ignoring name index '%s': %s", version, e.getMessage()));
+      return Optional.empty();
+    }
+  }
+
+  /**
+   * The numbered files of the index at <code>file</code>, oldest first. An index written before they were numbered is
+   * at <code>file</code> itself and comes first.
+   */
+  private static List<Path> versions(Path file) throws IOException {
+    if (!Files.isDirectory(file.getParent())) {
+      return List.of();
+    }
+    try (var paths = Files.list(file.getParent())) {
+      return paths
+          .filter(path -> versionNumber(file, path) >= 0 && Files.isRegularFile(path))
+          .sorted(Comparator.comparingLong(path -> versionNumber(file, path)))
+          .collect(Collectors.toList());
+    }
+  }
+
+  /**
+   * -1 if <code>path</code> is not a version of the index at <code>file</code>
+   */
+  private static long versionNumber(Path file, Path path) {
+    if (path.equals(file)) {
+      return 0;
+    }
+    var name = path.getFileName().toString();
+    var prefix = file.getFileName().toString() + ".";
+    if (!name.startsWith(prefix)) {
+      return -1;
+    }
+    try {
+      return Long.parseLong(name.substring(prefix.length()));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Writes the names aside and renames the result over <code>file</code>, so that readers never see half an index
+   */
+  public static NameIndex write(Path file, Collection<String> names, Map<String, String> properties) {
+    var sorted = names.stream()
+        .map(name -> name.getBytes(StandardCharsets.UTF_8))
+        .sorted(Arrays::compareUnsigned)
+        .iterator();
+    return write(file, sorted, properties);
+  }
+
+  /**
+   * A new index with the names of this one, plus <code>added</code> and less <code>removed</code>, written over this one
+   */
+  public NameIndex update(Collection<String> added, Collection<String> removed, Map<String, String> properties) {
+    var addedSorted = added.stream()
+        .map(name -> name.getBytes(StandardCharsets.UTF_8))
+        .sorted(Arrays::compareUnsigned)
+        .iterator();
+    var removedSet = removed.stream()
+        .map(name -> ByteBuffer.wrap(name.getBytes(StandardCharsets.UTF_8)))
+        .collect(Collectors.toSet());
+
+    var merged = Iterators.filter(Iterators.mergeSorted(List.of(iterator(), addedSorted), Arrays::compareUnsigned),
+        name -> !removedSet.contains(ByteBuffer.wrap(name)));
+    return write(file, merged, properties);
+  }
+
+  /**
+   * @param names in order, duplicates are skipped
+   */
+  private static NameIndex write(Path file, Iterator<byte[]> names, Map<String, String> properties) {
+    Path version;
+    try {
+      Files.createDirectories(file.getParent());
+      var written = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+      try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(written)))) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(properties.size());
+        for (var property : properties.entrySet()) {
+          writeString(out, property.getKey());
+          writeString(out, property.getValue());
+        }
+
+        var dataStart = out.size();
+        var offsets = new ArrayList<Integer>();
+        var count = 0;
+        byte[] previous = null;
+        while (names.hasNext()) {
+          var name = names.next();
+          if (previous != null && Arrays.equals(previous, name)) {
+            continue;
+          }
+          var shared = 0;
+          if (count % BLOCK_SIZE == 0) {
+            offsets.add(out.size() - dataStart);
+          } else {
+            shared = Arrays.mismatch(previous, name);
+            writeVarint(out, shared);
+          }
+          writeVarint(out, name.length - shared);
+          out.write(name, shared, name.length - shared);
+          previous = name;
+          count++;
+        }
+
+        var offsetsStart = out.size();
+        for (var offset : offsets) {
+          out.writeInt(offset);
+        }
+        out.writeInt(count);
+        out.writeInt(offsets.size());
+        out.writeInt(dataStart);
+        out.writeInt(offsetsStart);
+      }
+      var older = versions(file);
+      var number = older.isEmpty() ? 1 : versionNumber(file, older.get(older.size() - 1)) + 1;
+      version = file.resolveSibling(file.getFileName().toString() + "." + number);
+      Files.move(written, version, StandardCopyOption.ATOMIC_MOVE);
+      deleteIfUnused(older);
+    } catch (IOException e) {
+      throw new RuntimeException(String.format("Failed to write name index '%s'", file), e);
+    }
+
+    return open(file, version).orElseThrow(() -> new RuntimeException(String.format("Failed to read name index '%s' after writing it", version)));
+  }
+
+  /**
+   * Older versions that are still mapped, on Windows, are left for the next write to delete
+   */
+  private static void deleteIfUnused(List<Path> versions) {
+    for (var version : versions) {
+      try {
+        Files.deleteIfExists(version);
+      } catch (IOException e) {
+        log.info(() -> String.format("Keeping name index '%s' for now: %s", version, e.getMessage()));
+      }
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+    var bytes = s.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static void writeVarint(DataOutputStream out, int value) throws IOException {
+    while ((value & ~0x7f) != 0) {
+      out.write((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+  public boolean contains(String name) {
+    var wanted = name.getBytes(StandardCharsets.UTF_8);
+    return ceiling(wanted).filter(found -> Arrays.equals(found, wanted)).isPresent();
+  }
+
+  /**
+   * True if any name starts with <code>prefix</code>
+   */
+  public boolean containsPrefix(String prefix) {
+    var wanted = prefix.getBytes(StandardCharsets.UTF_8);
+    return ceiling(wanted)
+        .filter(found -> found.length >= wanted.length && Arrays.equals(found, 0, wanted.length, wanted, 0, wanted.length))
+        .isPresent();
+  }
+
+  /**
+   * The first name that is equal to or sorts after <code>wanted</code>
+   */
+  private Optional<byte[]> ceiling(byte[] wanted) {
+    // Last block starting at or before the wanted name
+    var low = 0;
+    var high = blocks - 1;
+    var block = -1;
+    while (low <= high) {
+      var middle = (low + high) >>> 1;
+      if (Arrays.compareUnsigned(firstName(middle), wanted) <= 0) {
+        block = middle;
+        low = middle + 1;
+      } else {
+        high = middle - 1;
+      }
+    }
+    if (block < 0) {
+      return blocks > 0 ? Optional.of(firstName(0)) : Optional.empty();
+    }
+
+    var found = new byte[1][];
+    scan(block, name -> {
+      if (Arrays.compareUnsigned(name, wanted) >= 0) {
+        found[0] = name;
+        return false;
+      }
+      return true;
+    });
+    if (found[0] == null && block + 1 < blocks) {
+      found[0] = firstName(block + 1);
+    }
+    return Optional.ofNullable(found[0]);
+  }
+
+  /**
+   * All names, in order
+   */
+  public List<String> names() {
+    var names = new ArrayList<String>(size);
+    iterator().forEachRemaining(name -> names.add(new String(name, StandardCharsets.UTF_8)));
+    return names;
+  }
+
+  /**
+   * Gives the names of a block to <code>visitor</code> in order until it returns false
+   */
+  private void scan(int block, Predicate<byte[]> visitor) {
+    var cursor = new int[] {dataStart + offset(block)};
+    var current = new byte[0];
+    var last = Math.min(size, (block + 1) * BLOCK_SIZE);
+    for (var i = block * BLOCK_SIZE; i < last; i++) {
+      current = decode(cursor, current, i == block * BLOCK_SIZE);
+      if (!visitor.test(current)) {
+        return;
+      }
+    }
+  }
+
+  private Iterator<byte[]> iterator() {
+    return new Iterator<>() {
+      private final int[] cursor = new int[1];
+      private byte[] current = new byte[0];
+      private int i = 0;
+
+      @Override
+      public boolean hasNext() {
+        return i < size;
+      }
+
+      @Override
+      public byte[] next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        var first = i % BLOCK_SIZE == 0;
+        if (first) {
+          cursor[0] = dataStart + offset(i / BLOCK_SIZE);
+        }
+        current = decode(cursor, current, first);
+        i++;
+        return current;
+      }
+    };
+  }
+
+  /**
+   * Decodes the name at the cursor and moves past it, <code>previous</code> is the name before it in the block
+   */
+  private byte[] decode(int[] cursor, byte[] previous, boolean firstInBlock) {
+    var shared = firstInBlock ? 0 : readVarint(cursor);
+    var suffixLength = readVarint(cursor);
+    var name = Arrays.copyOf(previous, shared + suffixLength);
+    buffer.get(cursor[0], name, shared, suffixLength);
+    cursor[0] += suffixLength;
+    return name;
+  }
+
+  private int readVarint(int[] cursor) {
+    var value = 0;
+    var shift = 0;
+    byte b;
+    do {
+      b = buffer.get(cursor[0]++);
+      value |= (b & 0x7f) << shift;
+      shift += 7;
+    } while ((b & 0x80) != 0);
+    return value;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public Optional<String> getProperty(String key) {
+    return Optional.ofNullable(properties.get(key));
+  }
+
+  /**
+   * When the index was written or last confirmed to be current
+   */
+  public Instant getCheckedAt() {
+    try {
+      return Files.getLastModifiedTime(version).toInstant();
+    } catch (IOException e) {
+      throw new RuntimeException(String.format("Failed to read the age of name index '%s'", version), e);
+    }
+  }
+
+  /**
+   * Marks the index as current without writing it again
+   */
+  public void checked() {
+    try {
+      Files.setLastModifiedTime(version, FileTime.from(Instant.now()));
+    } catch (IOException e) {
+      throw new RuntimeException(String.format("Failed to update name index '%s'", version), e);
+    }
+  }
+
+  private int offset(int block) {
+    return buffer.getInt(offsetsStart + block * Integer.BYTES);
+  }
+
+  private byte[] firstName(int block) {
+    var cursor = new int[] {dataStart + offset(block)};
+    var length = readVarint(cursor);
+    return bytes(cursor[0], length);
+  }
+
+  private byte[] bytes(int position, int length) {
+    var bytes = new byte[length];
+    buffer.get(position, bytes);
+    return bytes;
+  }
+
+  private String string(int position) {
+    return new String(bytes(position + Integer.BYTES, buffer.getInt(position)), StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2021 Schibsted. Licensed under the terms of the Apache 2.0 license. See LICENSE in the project root.
+ */
+
+package com.schibsted.security.artishock.shared;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket. Tokens refill at <code>permitsPerSecond</code> up to <code>burst</code>, and each request takes one.
+ */
+public class RateLimiter {
+  private final int burst;
+  private double permitsPerSecond;
+  private double tokens;
+  private long lastRefillNanos;
+
+  RateLimiter(double permitsPerSecond, int burst) {
+    if (permitsPerSecond <= 0) {
+      throw new RuntimeException(String.format("Requests per second must be positive, got %s", permitsPerSecond));
+    }
+    if (burst < 1) {
+      throw new RuntimeException(String.format("Burst must be at least 1, got %d", burst));
+    }
+    this.permitsPerSecond = permitsPerSecond;
+    this.burst = burst;
+    this.tokens = burst;
+    this.lastRefillNanos = System.nanoTime();
+  }
+
+  /**
+   * Takes a token, returns how many nanoseconds the caller must wait before using it
+   */
+  public synchronized long reserve() {
+    refill();
+    tokens -= 1;
+
+    // Refill starts in the future while paused
+    var pausedNanos = Math.max(0, lastRefillNanos - System.nanoTime());
+    if (tokens >= 0) {
+      return pausedNanos;
+    }
+    return pausedNanos + (long) (-tokens / permitsPerSecond * TimeUnit.SECONDS.toNanos(1));
+  }
+
+  /**
+   * Takes a token only if one is available right now
+   */
+  public synchronized boolean tryAcquire() {
+    refill();
+    if (tokens >= 1 && lastRefillNanos <= System.nanoTime()) {
+      tokens -= 1;
+      return true;
+    }
+    return false;
+  }
+
+  public void acquire() {
+    var waitNanos = reserve();
+    if (waitNanos > 0) {
+      try {
+        TimeUnit.NANOSECONDS.sleep(waitNanos);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException("Interrupted while waiting for rate limit", e);
+      }
+    }
+  }
+
+  public synchronized double getPermitsPerSecond() {
+    return permitsPerSecond;
+  }
+
+  public synchronized void setPermitsPerSecond(double permitsPerSecond) {
+    refill();
+    this.permitsPerSecond = permitsPerSecond;
+  }
+
+  /**
+   * No tokens are handed out for the given time, and the bucket starts refilling from empty afterwards
+   */
+  public synchronized void pauseFor(long nanos) {
+    refill();
+    var until = System.nanoTime() + nanos;
+    if (until > lastRefillNanos) {
+      tokens = Math.min(tokens, 0);
+      lastRefillNanos = until;
+    }
+  }
+
+  private void refill() {
+    var now = System.nanoTime();
+    if (now <= lastRefillNanos) {
+      return;
+    }
+    var elapsedSeconds = (now - lastRefillNanos) / (double) TimeUnit.SECONDS.toNanos(1);
+    tokens = Math.min(burst, tokens + elapsedSeconds * permitsPerSecond);
+    lastRefillNanos = now;
+  }
+}
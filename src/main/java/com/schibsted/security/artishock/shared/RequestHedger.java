@@ -0,0 +1,73 @@
+/*
+ * Copyright 2021 Schibsted. Licensed under the terms of the Apache 2.0 license. See LICENSE in the project root.
+ */
+
+package com.schibsted.security.artishock.shared;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Observed latencies for one host, and the budget for sending a second copy of a slow request.
+ * At most one in ten requests is hedged, and a hedge is only sent if the host rate limit has a token to spare.
+ */
+public class RequestHedger {
+  private static final int SAMPLES = 256;
+  private static final int MINIMUM_SAMPLES = 20;
+  private static final double MAX_HEDGE_FRACTION = 0.1;
+
+  private static final Map<String, RequestHedger> hosts = new ConcurrentHashMap<>();
+
+  private final long[] latenciesNanos = new long[SAMPLES];
+  private int samples;
+  private int next;
+  private long requests;
+  private long hedges;
+
+  public static RequestHedger forHost(String host) {
+    return hosts.computeIfAbsent(host, h -> new RequestHedger());
+  }
+
+  public synchronized void onRequest() {
+    requests++;
+  }
+
+  public synchronized void record(Duration latency) {
+    latenciesNanos[next] = latency.toNanos();
+    next = (next + 1) % SAMPLES;
+    samples = Math.min(samples + 1, SAMPLES);
+  }
+
+  /**
+   * How long to wait for a response before hedging, empty until enough latencies have been observed
+   */
+  public synchronized Optional<Duration> hedgeDelay(double percentile) {
+    if (samples < MINIMUM_SAMPLES) {
+      return Optional.empty();
+    }
+
+    var sorted = Arrays.copyOf(latenciesNanos, samples);
+    Arrays.sort(sorted);
+    var index = (int) Math.ceil(percentile / 100 * samples) - 1;
+    return Optional.of(Duration.ofNanos(sorted[Math.max(0, Math.min(index, samples - 1))]));
+  }
+
+  /**
+   * Takes a hedge from the budget if there is room
+   */
+  public boolean tryHedge(Optional<AdaptiveRateController> rateController) {
+    synchronized (this) {
+      if (hedges + 1 > requests * MAX_HEDGE_FRACTION) {
+        return false;
+      }
+      if (rateController.isPresent() && !rateController.get().tryAcquire()) {
+        return false;
+      }
+      hedges++;
+      return true;
+    }
+  }
+}
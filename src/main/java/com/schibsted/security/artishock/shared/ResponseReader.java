@@ -0,0 +1,16 @@
+/*
+ * Copyright 2021 Schibsted. Licensed under the terms of the Apache 2.0 license. See LICENSE in the project root.
+ */
+
+package com.schibsted.security.artishock.shared;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Consumes a response body as it arrives. The reader is closed by HttpClient once this returns.
+ */
+@FunctionalInterface
+public interface ResponseReader<T> {
+  T read(Reader reader) throws IOException;
+}
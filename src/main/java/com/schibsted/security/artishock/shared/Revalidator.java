@@ -0,0 +1,112 @@
+/*
+ * Copyright 2021 Schibsted. Licensed under the terms of the Apache 2.0 license. See LICENSE in the project root.
+ */
+
+package com.schibsted.security.artishock.shared;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Refreshes cache entries in the background while their stale value is used. A key is only queued once,
+ * and only a few refreshes run at a time so they do not crowd out the requests the command is waiting for.
+ */
+class Revalidator {
+  private static final Logger log = LogManager.getLogger();
+
+  private static final int MAX_CONCURRENT = 4;
+
+  private static class Task {
+    private final String key;
+    private final Supplier<CompletableFuture<Void>> refresh;
+
+    Task(String key, Supplier<CompletableFuture<Void>> refresh) {
+      this.key = key;
+      this.refresh = refresh;
+    }
+  }
+
+  private final Set<String> pending = new HashSet<>();
+  private final Queue<Task> queue = new ArrayDeque<>();
+  private int running;
+  // Set while a thread is starting refreshes, the others leave the queue to it
+  private boolean starting;
+
+  void submit(String key, Supplier<CompletableFuture<Void>> refresh) {
+    synchronized (this) {
+      if (!pending.add(key)) {
+        return;
+      }
+      queue.add(new Task(key, refresh));
+    }
+    startNext();
+  }
+
+  /**
+   * Starts refreshes outside the lock and in a loop rather than from the completion of the previous one,
+   * so refreshes that fail right away, like while a circuit breaker is open, do not nest on the stack
+   */
+  private void startNext() {
+    synchronized (this) {
+      if (starting) {
+        return;
+      }
+      starting = true;
+    }
+
+    while (true) {
+      Task task;
+      synchronized (this) {
+        if (running >= MAX_CONCURRENT || queue.isEmpty()) {
+          starting = false;
+          return;
+        }
+        task = queue.poll();
+        running++;
+      }
+
+      CompletableFuture<Void> future;
+      try {
+        future = task.refresh.get();
+      } catch (RuntimeException e) {
+        future = CompletableFuture.failedFuture(e);
+      }
+      future.whenComplete((v, e) -> done(task, e));
+    }
+  }
+
+  private void done(Task task, Throwable e) {
+    if (e != null) {
+      log.info(() -> String.format("Background refresh of '%s' failed, keeping the cached value: %s", task.key, Futures.unwrap(e).getMessage()));
+    }
+    synchronized (this) {
+      running--;
+      pending.remove(task.key);
+      notifyAll();
+    }
+    startNext();
+  }
+
+  /**
+   * Waits for queued and running refreshes, so their results are in the cache before the command exits
+   */
+  synchronized void drain() {
+    if (running > 0 || !queue.isEmpty()) {
+      log.info(() -> String.format("Waiting for %d background cache refreshes", running + queue.size()));
+    }
+    while (running > 0 || !queue.isEmpty()) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException("Interrupted while waiting for background cache refreshes", e);
+      }
+    }
+  }
+}
@@ -4,89 +4,361 @@
 
 package com.schibsted.security.artishock.shared;
 
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.schibsted.security.artishock.config.CacheConfig;
 import com.schibsted.security.artishock.config.ConfigResolver;
-import java.io.File;
 import java.io.IOException;
-import java.net.URLEncoder;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
 import java.time.Instant;
-import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 import java.util.function.Supplier;
 
 public class SimpleCache {
-  public static boolean notInCache(String key, String repo, CacheCategory npmCacheCategory) {
-    var cacheFile = cacheFile(key, repo, npmCacheCategory);
+  // Cache misses currently being fetched, so that concurrent callers asking for the same entry share one request
+  private static final Map<String, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
 
-    return !cacheFile.exists() || olderThanOneWeek(cacheFile);
+  private static CacheStore store;
+  private static volatile CacheConfig cacheConfig = new CacheConfig(null);
+  private static volatile MemoryCache memoryCache = memoryCache(new CacheConfig(null));
+  private static volatile CacheStats stats = new CacheStats(memoryCache);
+  private static final Revalidator revalidator = new Revalidator();
+  private static final ObjectMapper mapper = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+  private enum Freshness { FRESH, STALE, EXPIRED }
+
+  private static class Hit {
+    private final String value;
+    private final boolean stale;
+
+    Hit(String value, boolean stale) {
+      this.value = value;
+      this.stale = stale;
+    }
+  }
+
+  /**
+   * Must be called before the first lookup for the memory limits and expiry to apply
+   */
+  public static synchronized void configure(CacheConfig cacheConfig) {
+    SimpleCache.cacheConfig = cacheConfig;
+    memoryCache = memoryCache(cacheConfig);
+    stats = new CacheStats(memoryCache);
+  }
+
+  private static MemoryCache memoryCache(CacheConfig cacheConfig) {
+    return new MemoryCache(cacheConfig.getMemoryEntries(), cacheConfig.getMemoryBytes());
+  }
+
+  public static CacheStats getStats() {
+    return stats;
+  }
+
+  private static synchronized CacheStore store() {
+    if (store == null) {
+      createDirectoryIfNonexistent(ConfigResolver.configDirectory());
+      store = CacheStore.open(cacheDirectory(), cacheConfig.getLongestTtl().plus(cacheConfig.getStale()));
+    }
+    return store;
+  }
+
+  public static boolean notInCache(String key, String repo, CacheCategory cacheCategory) {
+    return store().get(repo, cacheCategory, key)
+        .filter(entry -> freshness(cacheCategory, store().read(entry), entry.getWrittenAt(), entry.getSince()) == Freshness.FRESH)
+        .isEmpty();
+  }
+
+  /**
+   * The time to live depends on category and on whether the answer is true or false. Where the configured maximum
+   * is longer than the time to live, it grows by how long the answer had already stayed the same when last written.
+   * With a stale period configured, answers in the last tenth of their time to live or less than the stale period
+   * past it are stale: still used, but refreshed in the background. A time to live of zero means the answer is
+   * revalidated on every lookup, so it is never stale.
+   */
+  private static Freshness freshness(CacheCategory cacheCategory, String value, Instant writtenAt, Instant since) {
+    var outcome = value.equals("true") ? Optional.of(true) : value.equals("false") ? Optional.of(false) : Optional.<Boolean>empty();
+    var ttl = cacheConfig.getTtl(cacheCategory.getName(), outcome);
+
+    var grown = ttl.getBase().plus(Duration.between(since, writtenAt));
+    var timeToLive = grown.compareTo(ttl.getMax()) > 0 ? ttl.getMax() : grown;
+    var stale = cacheConfig.getStale();
+    var now = Instant.now();
+
+    if (stale.isZero() || timeToLive.isZero()) {
+      return writtenAt.plus(timeToLive).isAfter(now) ? Freshness.FRESH : Freshness.EXPIRED;
+    }
+    if (writtenAt.plus(timeToLive.multipliedBy(9).dividedBy(10)).isAfter(now)) {
+      return Freshness.FRESH;
+    }
+    return writtenAt.plus(timeToLive).plus(stale).isAfter(now) ? Freshness.STALE : Freshness.EXPIRED;
   }
 
-  private static boolean olderThanOneWeek(File cacheFile) {
-    if (cacheFile.exists()) {
-      try {
-        var lastModified = Files.getLastModifiedTime(cacheFile.toPath());
-        var ageInDays = ChronoUnit.DAYS.between(lastModified.toInstant(), Instant.now());
+  public static String getFromCache(String key, String repo, CacheCategory cacheCategory) {
+    var entry = store().get(repo, cacheCategory, key)
+        .orElseThrow(() -> new RuntimeException(String.format("'%s' is not cached for %s", key, repo)));
+    return store().read(entry);
+  }
 
-        return ageInDays >= 7;
-      } catch (IOException e) {
-        throw new RuntimeException("Failed to find age of cache " + cacheFile);
+  /**
+   * Looks in memory first, answers found on disk are kept in memory for the next lookup
+   */
+  private static Optional<Hit> getFromCacheIfUsable(String key, String repo, CacheCategory cacheCategory) {
+    var memoryKey = memoryKey(key, repo, cacheCategory);
+    var inMemory = memoryCache.get(memoryKey);
+    if (inMemory.isPresent()) {
+      var value = inMemory.get();
+      var freshness = freshness(cacheCategory, value.getValue(), value.getWrittenAt(), value.getSince());
+      if (freshness != Freshness.EXPIRED) {
+        stats.memoryHit();
+        return Optional.of(new Hit(value.getValue(), freshness == Freshness.STALE));
       }
     }
 
-    return false;
+    var onDisk = store().get(repo, cacheCategory, key);
+    if (onDisk.isPresent()) {
+      var entry = onDisk.get();
+      var value = store().read(entry);
+      var freshness = freshness(cacheCategory, value, entry.getWrittenAt(), entry.getSince());
+      if (freshness != Freshness.EXPIRED) {
+        memoryCache.put(memoryKey, value, entry.getWrittenAt(), entry.getSince());
+        stats.diskHit();
+        return Optional.of(new Hit(value, freshness == Freshness.STALE));
+      }
+    }
+    return Optional.empty();
   }
 
-  private static File cacheFile(String key, String repo, CacheCategory npmCacheCategory) {
-    var urlEncodedKey = urlEncode(key);
-    var urlEncodedRepo = urlEncode(repo);
-    return ConfigResolver.configDirectory().resolve("cache/" + urlEncodedRepo + npmCacheCategory.getPath() + urlEncodedKey).toFile();
+  /**
+   * Uses the cached value, queueing a background refresh if it is stale
+   */
+  private static String use(Hit hit, String key, String repo, CacheCategory cacheCategory, Function<Validators, CompletableFuture<ConditionalResult<String>>> f) {
+    if (hit.stale) {
+      stats.staleHit();
+      revalidator.submit(memoryKey(key, repo, cacheCategory), () -> fetch(key, repo, cacheCategory, f).thenAccept(value -> { }));
+    }
+    return hit.value;
   }
 
-  private static String urlEncode(String s) {
-    return URLEncoder.encode(s, StandardCharsets.UTF_8);
+  /**
+   * Fetches with the validators of the cached entry, if any, and keeps the cached value if the server says it is not modified
+   */
+  private static CompletableFuture<String> fetch(String key, String repo, CacheCategory cacheCategory, Function<Validators, CompletableFuture<ConditionalResult<String>>> f) {
+    var previous = store().get(repo, cacheCategory, key);
+    var validators = previous.map(CacheStore.Entry::getValidators).orElse(Validators.none());
+
+    return f.apply(validators).thenApply(result -> {
+      if (result.getValue().isPresent()) {
+        putInCache(key, repo, cacheCategory, result.getValue().get(), result.getValidators());
+        return result.getValue().get();
+      }
+
+      if (previous.isEmpty()) {
+        throw new RuntimeException(String.format("Not modified answer for '%s' in %s that is not cached", key, repo));
+      }
+      stats.notModified();
+      var value = store().read(previous.get());
+      var entry = store().renew(previous.get(), value, result.getValidators().isEmpty() ? validators : result.getValidators());
+      memoryCache.put(memoryKey(key, repo, cacheCategory), value, entry.getWrittenAt(), entry.getSince());
+      return value;
+    });
+  }
+
+  /**
+   * Writes the cache to a single compressed file that can be imported elsewhere, returns the number of entries
+   */
+  public static int exportCache(Path snapshot) {
+    return store().exportTo(snapshot);
+  }
+
+  /**
+   * Merges a snapshot from exportCache into the cache, keeping whichever answer is newer, returns the number of entries taken
+   */
+  public static int importCache(Path snapshot) {
+    return store().importFrom(snapshot);
+  }
+
+  /**
+   * Entries, size and ages per category, every category is included
+   */
+  public static List<CacheUsage> usage() {
+    var usage = new EnumMap<CacheCategory, CacheUsage>(CacheCategory.class);
+    for (var category : CacheCategory.values()) {
+      usage.put(category, new CacheUsage(category));
+    }
+
+    var now = Instant.now();
+    for (var entry : store().entries()) {
+      var freshness = freshness(entry.getCategory(), store().read(entry), entry.getWrittenAt(), entry.getSince());
+      usage.get(entry.getCategory()).add(entry.getBytes(), Duration.between(entry.getWrittenAt(), now),
+          freshness == Freshness.STALE, removable(entry));
+    }
+    return new ArrayList<>(usage.values());
   }
 
-  public static String getFromCache(String key, String repo, CacheCategory npmCacheCategory) {
-    var path = cacheFile(key, repo, npmCacheCategory).toPath();
+  /**
+   * Size of the cache file on disk
+   */
+  public static long fileBytes() {
+    return store().fileBytes();
+  }
+
+  /**
+   * Removes the entries that have expired and can no longer be used, even as stale, returns how many were removed
+   */
+  public static int collectGarbage() {
+    return store().removeIf(SimpleCache::removable);
+  }
+
+  /**
+   * Expired entries with validators are kept, they still save a download when the server answers not modified
+   */
+  private static boolean removable(CacheStore.Entry entry) {
+    return entry.getValidators().isEmpty()
+        && freshness(entry.getCategory(), store().read(entry), entry.getWrittenAt(), entry.getSince()) == Freshness.EXPIRED;
+  }
+
+  /**
+   * Keeps the counts of this run for the next cache-stats, runs that did not look anything up are not saved
+   */
+  public static void saveStats() {
+    if (!stats.hasLookups()) {
+      return;
+    }
+    var path = lastRunFile();
     try {
-      return Files.readString(path);
+      createDirectoryIfNonexistent(path.getParent());
+      // Written aside and renamed, so that another process never reads half of it
+      var written = Files.createTempFile(path.getParent(), "last-run", ".json");
+      mapper.writeValue(written.toFile(), stats.toRun(Instant.now()));
+      Files.move(written, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
     } catch (IOException e) {
-      throw new RuntimeException(String.format("Failed read cached data from '%s'", path), e);
+      throw new RuntimeException(String.format("Failed to write cache statistics to '%s'", path), e);
     }
   }
 
-  public static void putInCache(String key, String repo, CacheCategory npmCacheCategory, String content) {
-    var configDirectory = ConfigResolver.configDirectory();
-    var urlEncodedRepo = urlEncode(repo);
-    createDirectoryIfNonexistent(configDirectory);
-    createDirectoryIfNonexistent(configDirectory.resolve("cache/"));
-    createDirectoryIfNonexistent(configDirectory.resolve("cache/" + urlEncodedRepo));
-    createDirectoryIfNonexistent(configDirectory.resolve("cache/" + urlEncodedRepo + npmCacheCategory.getPath()));
-
-    var path = cacheFile(key, repo, npmCacheCategory).toPath();
+  /**
+   * Counts saved by the last run that looked up cached answers
+   */
+  public static Optional<CacheStats.Run> lastRun() {
+    var path = lastRunFile();
+    if (!Files.isRegularFile(path)) {
+      return Optional.empty();
+    }
     try {
-      Files.writeString(path, content);
+      return Optional.of(mapper.readValue(path.toFile(), CacheStats.Run.class));
     } catch (IOException e) {
-      throw new RuntimeException(String.format("Failed to write cache to '%s'", path));
+      throw new RuntimeException(String.format("Failed to read cache statistics from '%s'", path), e);
     }
   }
 
+  private static Path lastRunFile() {
+    return cacheDirectory().resolve("last-run.json");
+  }
+
+  public static Path cacheDirectory() {
+    return ConfigResolver.configDirectory().resolve("cache");
+  }
+
+  /**
+   * Must be called before exiting for background refreshes to be saved
+   */
+  public static void drainRefreshes() {
+    revalidator.drain();
+  }
+
+  private static String memoryKey(String key, String repo, CacheCategory cacheCategory) {
+    return repo + cacheCategory.getPath() + key;
+  }
+
+  public static void putInCache(String key, String repo, CacheCategory cacheCategory, String content) {
+    putInCache(key, repo, cacheCategory, content, Validators.none());
+  }
+
+  public static void putInCache(String key, String repo, CacheCategory cacheCategory, String content, Validators validators) {
+    var entry = store().put(repo, cacheCategory, key, content, validators);
+    memoryCache.put(memoryKey(key, repo, cacheCategory), content, entry.getWrittenAt(), entry.getSince());
+  }
+
   public static void createDirectoryIfNonexistent(Path path) {
     var cacheDirectory = path.toFile();
     if (!cacheDirectory.exists()) {
-      if (!cacheDirectory.mkdir()) {
+      // Another thread may have created it in the meantime
+      if (!cacheDirectory.mkdir() && !cacheDirectory.isDirectory()) {
         throw new RuntimeException(String.format("Failed to create '%s'", cacheDirectory));
       }
     }
   }
 
   public static String getFromCacheOrExecute(ConnectionInfo connectionInfo, String key, CacheCategory cacheCategory, Supplier<String> f) {
+    return Futures.join(getFromCacheOrExecuteAsync(connectionInfo, key, cacheCategory, () -> CompletableFuture.completedFuture(f.get())));
+  }
+
+  public static CompletableFuture<String> getFromCacheOrExecuteAsync(ConnectionInfo connectionInfo, String key, CacheCategory cacheCategory,
+                                                                     Supplier<CompletableFuture<String>> f) {
+    return getFromCacheOrRevalidateAsync(connectionInfo, key, cacheCategory,
+        validators -> f.get().thenApply(value -> ConditionalResult.modified(value, Validators.none())));
+  }
+
+  /**
+   * Like getFromCacheOrExecute, but <code>f</code> is given the validators stored with an expired entry so it can make a
+   * conditional request, and may answer not modified to keep the cached value
+   */
+  public static String getFromCacheOrRevalidate(ConnectionInfo connectionInfo, String key, CacheCategory cacheCategory,
+                                                Function<Validators, ConditionalResult<String>> f) {
+    return Futures.join(getFromCacheOrRevalidateAsync(connectionInfo, key, cacheCategory, validators -> CompletableFuture.completedFuture(f.apply(validators))));
+  }
+
+  public static CompletableFuture<String> getFromCacheOrRevalidateAsync(ConnectionInfo connectionInfo, String key, CacheCategory cacheCategory,
+                                                                        Function<Validators, CompletableFuture<ConditionalResult<String>>> f) {
     var repo = connectionInfo.getPrefix();
 
-    if (SimpleCache.notInCache(key, repo, cacheCategory)) {
-      SimpleCache.putInCache(key, repo, cacheCategory, f.get());
+    var cached = getFromCacheIfUsable(key, repo, cacheCategory);
+    if (cached.isPresent()) {
+      return CompletableFuture.completedFuture(use(cached.get(), key, repo, cacheCategory, f));
+    }
+
+    var flightKey = memoryKey(key, repo, cacheCategory);
+    var flight = new CompletableFuture<String>();
+    var existing = inFlight.putIfAbsent(flightKey, flight);
+    if (existing != null) {
+      return existing;
+    }
+
+    try {
+      // Another flight for the same key may have finished between the cache check and claiming the key
+      var landed = getFromCacheIfUsable(key, repo, cacheCategory);
+      if (landed.isPresent()) {
+        land(flightKey, flight, use(landed.get(), key, repo, cacheCategory, f), null);
+      } else {
+        stats.miss();
+        fetch(key, repo, cacheCategory, f).whenComplete((value, e) -> land(flightKey, flight, value, e));
+      }
+    } catch (RuntimeException e) {
+      land(flightKey, flight, null, e);
+    }
+
+    return flight;
+  }
+
+  /**
+   * The entry is removed before completing so callers that see the result and ask again go to the cache
+   */
+  private static void land(String flightKey, CompletableFuture<String> flight, String value, Throwable e) {
+    inFlight.remove(flightKey, flight);
+    if (e != null) {
+      flight.completeExceptionally(Futures.unwrap(e));
+    } else {
+      flight.complete(value);
     }
-    return SimpleCache.getFromCache(key, repo, cacheCategory);
   }
 }
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2021 Schibsted. Licensed under the terms of the Apache 2.0 license. See LICENSE in the project root.
+ */
+
+package com.schibsted.security.artishock.shared;
+
+import java.util.Optional;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * ETag and Last-Modified of a response, sent back on the next request so the server can answer 304 if nothing changed
+ */
+public class Validators {
+  private final Optional<String> etag;
+  private final Optional<String> lastModified;
+
+  public Validators(Optional<String> etag, Optional<String> lastModified) {
+    this.etag = etag;
+    this.lastModified = lastModified;
+  }
+
+  public static Validators none() {
+    return new Validators(Optional.empty(), Optional.empty());
+  }
+
+  static Validators from(Response response) {
+    return new Validators(Optional.ofNullable(response.header("ETag")), Optional.ofNullable(response.header("Last-Modified")));
+  }
+
+  Request addTo(Request request) {
+    var builder = request.newBuilder();
+    etag.ifPresent(e -> builder.header("If-None-Match", e));
+    lastModified.ifPresent(l -> builder.header("If-Modified-Since", l));
+    return builder.build();
+  }
+
+  public Optional<String> getEtag() {
+    return etag;
+  }
+
+  public Optional<String> getLastModified() {
+    return lastModified;
+  }
+
+  public boolean isEmpty() {
+    return etag.isEmpty() && lastModified.isEmpty();
+  }
+}
@@ -0,0 +1,372 @@
+/*
+ * Copyright 2021 Schibsted. Licensed under the terms of the Apache 2.0 license. See LICENSE in the project root.
+ */
+
+package com.schibsted.security.artishock.shared;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Optional;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class CacheStoreTest {
+  private static final int MAGIC = 0x41534843;
+  private static final int VERSION = 5;
+  private static final Duration RETENTION = Duration.ofDays(30);
+
+  @TempDir
+  Path directory;
+
+  @Test
+  void putAndReadBack() {
+    var store = CacheStore.open(directory, RETENTION);
+    store.put("https://registry.npmjs.org", CacheCategory.PACKAGE_EXISTS, "react", "true", Validators.none());
+
+    var entry = store.get("https://registry.npmjs.org", CacheCategory.PACKAGE_EXISTS, "react").orElseThrow();
+    assertEquals("true", store.read(entry));
+    assertEquals(Optional.empty(), store.get("https://registry.npmjs.org", CacheCategory.SEARCH, "react"));
+
+    var reopened = CacheStore.open(directory, RETENTION);
+    var read = reopened.get("https://registry.npmjs.org", CacheCategory.PACKAGE_EXISTS, "react").orElseThrow();
+    assertEquals("true", reopened.read(read));
+    assertEquals(entry.getWrittenAt(), read.getWrittenAt());
+  }
+
+  @Test
+  void validatorsAreKept() {
+    var store = CacheStore.open(directory, RETENTION);
+    var validators = new Validators(Optional.of("\"etag\""), Optional.of("Tue, 01 Jun 2021 00:00:00 GMT"));
+    store.put("repo", CacheCategory.INDEX, "key", "value", validators);
+
+    var entry = CacheStore.open(directory, RETENTION).get("repo", CacheCategory.INDEX, "key").orElseThrow();
+    assertEquals(Optional.of("\"etag\""), entry.getValidators().getEtag());
+    assertEquals(Optional.of("Tue, 01 Jun 2021 00:00:00 GMT"), entry.getValidators().getLastModified());
+  }
+
+  @Test
+  void renewalDoesNotCopyTheValue() throws InterruptedException {
+    var store = CacheStore.open(directory, RETENTION);
+    var value = "x".repeat(100_000);
+    var entry = store.put("repo", CacheCategory.INDEX, "key", value, new Validators(Optional.of("1"), Optional.empty()));
+    var before = store.fileBytes();
+
+    for (var i = 0; i < 10; i++) {
+      Thread.sleep(2);
+      entry = store.renew(entry, value, new Validators(Optional.of("2"), Optional.empty()));
+    }
+
+    assertTrue(store.fileBytes() - before < 10 * 200, "renewals should not hold the value");
+    assertEquals(value, store.read(entry));
+    assertEquals(Optional.of("2"), entry.getValidators().getEtag());
+
+    var reopened = CacheStore.open(directory, RETENTION);
+    var read = reopened.get("repo", CacheCategory.INDEX, "key").orElseThrow();
+    assertEquals(value, reopened.read(read));
+    assertEquals(entry.getWrittenAt(), read.getWrittenAt());
+
+    // Compaction writes the value in full again
+    reopened.removeIf(e -> false);
+    assertEquals(value, reopened.read(reopened.get("repo", CacheCategory.INDEX, "key").orElseThrow()));
+  }
+
+  @Test
+  void renewalOfAReplacedEntryWritesTheValue() {
+    var store = CacheStore.open(directory, RETENTION);
+    var stale = store.put("repo", CacheCategory.INDEX, "key", "old", Validators.none());
+    store.put("repo", CacheCategory.INDEX, "key", "new", Validators.none());
+
+    var renewed = store.renew(stale, "old", Validators.none());
+
+    assertEquals("old", store.read(renewed));
+  }
+
+  @Test
+  void readsWhatWasAppendedSinceTheLastRead() {
+    // More appends than regions are mapped before the file is mapped again as one
+    var store = CacheStore.open(directory, RETENTION);
+    var entries = new ArrayList<CacheStore.Entry>();
+    for (var i = 0; i < 100; i++) {
+      entries.add(store.put("repo", CacheCategory.SEARCH, "key" + i, "value" + i, Validators.none()));
+      assertEquals("value" + i, store.read(entries.get(i)));
+    }
+    for (var i = 0; i < entries.size(); i++) {
+      assertEquals("value" + i, store.read(entries.get(i)));
+    }
+
+    var reopened = CacheStore.open(directory, RETENTION);
+    for (var i = 0; i < entries.size(); i++) {
+      assertEquals("value" + i, reopened.read(reopened.get("repo", CacheCategory.SEARCH, "key" + i).orElseThrow()));
+    }
+  }
+
+  @Test
+  void removedEntriesAreCompactedAway() {
+    var store = CacheStore.open(directory, RETENTION);
+    store.put("repo", CacheCategory.SEARCH, "kept", "value", Validators.none());
+    var kept = store.fileBytes();
+    store.put("repo", CacheCategory.SEARCH, "removed", "x".repeat(10_000), Validators.none());
+
+    assertEquals(1, store.removeIf(e -> e.getKey().equals("removed")));
+
+    assertEquals(kept, store.fileBytes());
+    assertEquals("value", store.read(store.get("repo", CacheCategory.SEARCH, "kept").orElseThrow()));
+    assertEquals(Optional.empty(), store.get("repo", CacheCategory.SEARCH, "removed"));
+  }
+
+  @Test
+  void incompleteRecordIsDropped() throws IOException {
+    var store = CacheStore.open(directory, RETENTION);
+    store.put("repo", CacheCategory.PACKAGE_INFO, "kept", "value", Validators.none());
+    var intactBytes = store.fileBytes();
+
+    // A write cut short: a length with only part of the record after it
+    Files.write(file(), new byte[] {0, 0, 0, 100, 1, 2, 3}, StandardOpenOption.APPEND);
+
+    var reopened = CacheStore.open(directory, RETENTION);
+    assertEquals("value", reopened.read(reopened.get("repo", CacheCategory.PACKAGE_INFO, "kept").orElseThrow()));
+    assertEquals(intactBytes, reopened.fileBytes());
+  }
+
+  @Test
+  void recordWithWrongChecksumIsDropped() throws IOException {
+    var store = CacheStore.open(directory, RETENTION);
+    store.put("repo", CacheCategory.PACKAGE_INFO, "first", "value", Validators.none());
+    var intactBytes = store.fileBytes();
+    store.put("repo", CacheCategory.PACKAGE_INFO, "second", "value", Validators.none());
+
+    var bytes = Files.readAllBytes(file());
+    // In the value of the second record, just before its validators and checksum
+    bytes[bytes.length - 3 * Integer.BYTES - 1] ^= 1;
+    Files.write(file(), bytes);
+
+    var reopened = CacheStore.open(directory, RETENTION);
+    assertEquals("value", reopened.read(reopened.get("repo", CacheCategory.PACKAGE_INFO, "first").orElseThrow()));
+    assertEquals(Optional.empty(), reopened.get("repo", CacheCategory.PACKAGE_INFO, "second"));
+    assertEquals(intactBytes, reopened.fileBytes());
+  }
+
+  @Test
+  void storeFollowsTheFileAfterCompaction() {
+    var store = CacheStore.open(directory, RETENTION);
+    var entry = store.put("repo", CacheCategory.SEARCH, "key", "value", Validators.none());
+    store.put("repo", CacheCategory.SEARCH, "removed", "value", Validators.none());
+
+    store.removeIf(e -> e.getKey().equals("removed"));
+
+    // Positions from before compaction are looked up again
+    assertEquals("value", store.read(entry));
+    store.put("repo", CacheCategory.SEARCH, "after", "value", Validators.none());
+    var reopened = CacheStore.open(directory, RETENTION);
+    assertEquals("value", reopened.read(reopened.get("repo", CacheCategory.SEARCH, "key").orElseThrow()));
+    assertEquals("value", reopened.read(reopened.get("repo", CacheCategory.SEARCH, "after").orElseThrow()));
+  }
+
+  @Test
+  void sameValueKeepsSince() throws InterruptedException {
+    var store = CacheStore.open(directory, RETENTION);
+    var first = store.put("repo", CacheCategory.PACKAGE_INFO, "key", "a", Validators.none());
+    Thread.sleep(5);
+    var same = store.put("repo", CacheCategory.PACKAGE_INFO, "key", "a", Validators.none());
+    Thread.sleep(5);
+    var changed = store.put("repo", CacheCategory.PACKAGE_INFO, "key", "b", Validators.none());
+
+    assertEquals(first.getSince(), same.getSince());
+    assertTrue(same.getWrittenAt().isAfter(first.getWrittenAt()));
+    assertEquals(changed.getWrittenAt(), changed.getSince());
+  }
+
+  @Test
+  void upgradesEveryOlderVersion() throws IOException {
+    var writtenAt = Instant.now().minus(1, ChronoUnit.HOURS).truncatedTo(ChronoUnit.MILLIS);
+    var since = writtenAt.minus(1, ChronoUnit.DAYS);
+
+    for (var version = 1; version < VERSION; version++) {
+      var out = new ByteArrayOutputStream();
+      if (version > 1) {
+        var data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeInt(version);
+      }
+      out.write(record(version, writtenAt, since, "repo", "PACKAGE_INFO", "key", "value " + version));
+      // Records of categories that no longer exist are skipped
+      out.write(record(version, writtenAt, since, "repo", "REMOVED", "key", "gone"));
+      Files.write(file(), out.toByteArray());
+
+      var store = CacheStore.open(directory, RETENTION);
+      var entry = store.get("repo", CacheCategory.PACKAGE_INFO, "key").orElseThrow();
+      assertEquals("value " + version, store.read(entry), "version " + version);
+      assertEquals(writtenAt, entry.getWrittenAt());
+      assertEquals(version >= 2 ? since : writtenAt, entry.getSince());
+      assertEquals(version >= 3 ? Optional.of("etag") : Optional.empty(), entry.getValidators().getEtag());
+      assertEquals(1, store.entries().size());
+
+      var header = ByteBuffer.wrap(Files.readAllBytes(file()));
+      assertEquals(MAGIC, header.getInt());
+      assertEquals(VERSION, header.getInt());
+      Files.delete(file());
+    }
+  }
+
+  @Test
+  void newerVersionIsRefused() throws IOException {
+    var data = new ByteArrayOutputStream();
+    new DataOutputStream(data).writeLong(((long) MAGIC << 32) | (VERSION + 1));
+    Files.write(file(), data.toByteArray());
+
+    assertThrows(RuntimeException.class, () -> CacheStore.open(directory, RETENTION));
+  }
+
+  @Test
+  void migratesOneFilePerKeyLayout() throws IOException {
+    var repo = "https://pypi.org/simple";
+    var repoDirectory = directory.resolve(URLEncoder.encode(repo, StandardCharsets.UTF_8));
+    var category = Files.createDirectories(repoDirectory.resolve("package-exists"));
+    Files.writeString(category.resolve(URLEncoder.encode("some/package", StandardCharsets.UTF_8)), "false");
+
+    var store = CacheStore.open(directory, RETENTION);
+
+    assertEquals("false", store.read(store.get(repo, CacheCategory.PACKAGE_EXISTS, "some/package").orElseThrow()));
+    assertTrue(Files.notExists(repoDirectory));
+  }
+
+  @Test
+  void migrationLeavesOtherFilesAlone() throws IOException {
+    var other = Files.createDirectories(directory.resolve("notes").resolve("drafts"));
+    var repoDirectory = directory.resolve("repo");
+    Files.createDirectories(repoDirectory.resolve("search"));
+    Files.writeString(repoDirectory.resolve("search").resolve("key"), "value");
+    Files.writeString(repoDirectory.resolve("README"), "mine");
+
+    var store = CacheStore.open(directory, RETENTION);
+
+    assertEquals("value", store.read(store.get("repo", CacheCategory.SEARCH, "key").orElseThrow()));
+    assertTrue(Files.isDirectory(other));
+    assertTrue(Files.exists(repoDirectory.resolve("README")));
+    assertTrue(Files.notExists(repoDirectory.resolve("search")));
+  }
+
+  @Test
+  void expiredEntriesAreDroppedOnOpen() throws IOException {
+    var old = Instant.now().minus(RETENTION).minus(1, ChronoUnit.DAYS);
+    Files.write(file(), record(1, old, old, "repo", "PACKAGE_INFO", "key", "value"));
+
+    var store = CacheStore.open(directory, RETENTION);
+
+    assertEquals(Optional.empty(), store.get("repo", CacheCategory.PACKAGE_INFO, "key"));
+  }
+
+  @Test
+  void exportAndImport() throws IOException {
+    var store = CacheStore.open(directory.resolve("a"), RETENTION);
+    var entry = store.put("repo", CacheCategory.SEARCH, "key", "value", new Validators(Optional.of("etag"), Optional.empty()));
+    store.renew(entry, "value", entry.getValidators());
+    store.put("repo", CacheCategory.ORG, "other", "true", Validators.none());
+    var snapshot = directory.resolve("snapshot.gz");
+
+    assertEquals(2, store.exportTo(snapshot));
+
+    var other = CacheStore.open(directory.resolve("b"), RETENTION);
+    assertEquals(2, other.importFrom(snapshot));
+    var imported = other.get("repo", CacheCategory.SEARCH, "key").orElseThrow();
+    assertEquals("value", other.read(imported));
+    assertEquals(Optional.of("etag"), imported.getValidators().getEtag());
+    assertEquals("true", other.read(other.get("repo", CacheCategory.ORG, "other").orElseThrow()));
+
+    // Nothing newer to take the second time
+    assertEquals(0, other.importFrom(snapshot));
+  }
+
+  @Test
+  void snapshotWithImpossibleLengthIsRefused() throws IOException {
+    for (var length : new int[] {Integer.MAX_VALUE, 2_000_000_000, -5, 0}) {
+      var snapshot = directory.resolve("snapshot.gz");
+      try (var out = new DataOutputStream(new GZIPOutputStream(Files.newOutputStream(snapshot)))) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(length);
+      }
+      var store = CacheStore.open(directory.resolve("cache"), RETENTION);
+
+      var e = assertThrows(RuntimeException.class, () -> store.importFrom(snapshot));
+      assertEquals(String.format("Cache snapshot '%s' is corrupt", snapshot), e.getMessage(), "length " + length);
+    }
+  }
+
+  @Test
+  void snapshotWithImpossibleFieldLengthIsRefused() throws IOException {
+    var snapshot = directory.resolve("snapshot.gz");
+    try (var out = new DataOutputStream(new GZIPOutputStream(Files.newOutputStream(snapshot)))) {
+      out.writeInt(MAGIC);
+      // Records of the third version have no checksum
+      out.writeInt(3);
+      out.writeInt(40);
+      out.writeLong(0);
+      out.writeLong(0);
+      out.writeInt(1_900_000_000);
+      out.write(new byte[20]);
+    }
+    var store = CacheStore.open(directory.resolve("cache"), RETENTION);
+
+    var e = assertThrows(RuntimeException.class, () -> store.importFrom(snapshot));
+    assertEquals(String.format("Cache snapshot '%s' is corrupt", snapshot), e.getMessage());
+  }
+
+  private Path file() {
+    return directory.resolve("cache.log");
+  }
+
+  /**
+   * A record as the given version wrote it
+   */
+  private static byte[] record(int version, Instant writtenAt, Instant since, String... fields) throws IOException {
+    var body = new ByteArrayOutputStream();
+    var data = new DataOutputStream(body);
+    data.writeLong(writtenAt.toEpochMilli());
+    if (version >= 2) {
+      data.writeLong(since.toEpochMilli());
+    }
+    for (var field : fields) {
+      writeString(data, field);
+    }
+    if (version >= 3) {
+      writeString(data, "etag");
+      writeString(data, "");
+    }
+
+    var bytes = body.toByteArray();
+    var record = new ByteArrayOutputStream();
+    var out = new DataOutputStream(record);
+    out.writeInt(bytes.length + (version >= 4 ? Integer.BYTES : 0));
+    out.write(bytes);
+    if (version >= 4) {
+      var checksum = new CRC32();
+      checksum.update(bytes);
+      out.writeInt((int) checksum.getValue());
+    }
+    return record.toByteArray();
+  }
+
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+    var bytes = s.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+}
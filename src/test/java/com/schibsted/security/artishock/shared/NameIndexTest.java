@@ -0,0 +1,161 @@
+/*
+ * Copyright 2021 Schibsted. Licensed under the terms of the Apache 2.0 license. See LICENSE in the project root.
+ */
+
+package com.schibsted.security.artishock.shared;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class NameIndexTest {
+  @TempDir
+  Path directory;
+
+  @Test
+  void namesRoundTripInByteOrder() {
+    // Several blocks, with names sharing prefixes of different lengths
+    var names = IntStream.range(0, 1000)
+        .mapToObj(i -> "package-" + i)
+        .collect(Collectors.toList());
+    names.add("@scope/\u00fcn\u00efc\u00f6d\u00e9");
+    names.add("a");
+
+    var index = NameIndex.write(directory.resolve("names.idx"), names, Map.of());
+
+    assertEquals(new ArrayList<>(new TreeSet<>(names)), index.names());
+    assertEquals(names.size(), index.size());
+    for (var name : names) {
+      assertTrue(index.contains(name), name);
+    }
+    assertFalse(index.contains("package-1000"));
+    assertFalse(index.contains("package-"));
+    assertFalse(index.contains(""));
+    assertFalse(index.contains("zzz"));
+  }
+
+  @Test
+  void duplicatesAreStoredOnce() {
+    var index = NameIndex.write(directory.resolve("names.idx"), List.of("b", "a", "b", "a"), Map.of());
+
+    assertEquals(List.of("a", "b"), index.names());
+    assertEquals(2, index.size());
+  }
+
+  @Test
+  void prefixes() {
+    var index = NameIndex.write(directory.resolve("names.idx"), List.of("@babel/core", "@types/node", "react"), Map.of());
+
+    assertTrue(index.containsPrefix("@babel/"));
+    assertTrue(index.containsPrefix("@types/node"));
+    assertTrue(index.containsPrefix(""));
+    assertFalse(index.containsPrefix("@angular/"));
+    assertFalse(index.containsPrefix("reacts"));
+  }
+
+  @Test
+  void lengthsThatNeedSeveralVarintBytes() {
+    // Shared prefixes and suffixes longer than 127 and 16383 bytes
+    var base = "x".repeat(20000);
+    var names = List.of(base, base + "a", base + "b".repeat(200), base.substring(0, 300) + "c");
+
+    var index = NameIndex.write(directory.resolve("names.idx"), names, Map.of());
+
+    assertEquals(new ArrayList<>(new TreeSet<>(names)), index.names());
+    for (var name : names) {
+      assertTrue(index.contains(name));
+    }
+    assertFalse(index.contains(base.substring(0, 300)));
+  }
+
+  @Test
+  void emptyIndex() {
+    var index = NameIndex.write(directory.resolve("names.idx"), List.of(), Map.of());
+
+    assertEquals(0, index.size());
+    assertEquals(List.of(), index.names());
+    assertFalse(index.contains("a"));
+    assertFalse(index.containsPrefix(""));
+  }
+
+  @Test
+  void trailerAndPropertiesAreReadBack() throws IOException {
+    var file = directory.resolve("names.idx");
+    NameIndex.write(file, List.of("a", "b", "c"), Map.of("sequence", "42", "etag", "\"abc\""));
+
+    var index = NameIndex.open(file).orElseThrow();
+    assertEquals(3, index.size());
+    assertEquals(Optional.of("42"), index.getProperty("sequence"));
+    assertEquals(Optional.of("\"abc\""), index.getProperty("etag"));
+    assertEquals(Optional.empty(), index.getProperty("missing"));
+
+    // Trailer: count of names, count of blocks, position of the data and position of the offsets
+    var bytes = ByteBuffer.wrap(Files.readAllBytes(directory.resolve("names.idx.1")));
+    var trailer = bytes.capacity() - 4 * Integer.BYTES;
+    assertEquals(3, bytes.getInt(trailer));
+    assertEquals(1, bytes.getInt(trailer + Integer.BYTES));
+    assertEquals(bytes.capacity() - 5 * Integer.BYTES, bytes.getInt(trailer + 3 * Integer.BYTES));
+  }
+
+  @Test
+  void updateMergesAddedAndRemoved() {
+    var file = directory.resolve("names.idx");
+    var index = NameIndex.write(file, List.of("a", "c", "e"), Map.of("sequence", "1"));
+
+    var updated = index.update(List.of("d", "b", "c"), List.of("e", "x"), Map.of("sequence", "2"));
+
+    assertEquals(List.of("a", "b", "c", "d"), updated.names());
+    assertEquals(Optional.of("2"), updated.getProperty("sequence"));
+    assertEquals(List.of("a", "b", "c", "d"), NameIndex.open(file).orElseThrow().names());
+  }
+
+  @Test
+  void eachWriteIsANewVersion() throws IOException {
+    var file = directory.resolve("names.idx");
+    // From before versions were numbered
+    NameIndex.write(directory.resolve("legacy.idx"), List.of("a"), Map.of());
+    Files.move(directory.resolve("legacy.idx.1"), file);
+    var legacy = NameIndex.open(file).orElseThrow();
+    assertEquals(List.of("a"), legacy.names());
+
+    var updated = legacy.update(List.of("b"), List.of(), Map.of());
+
+    // The old index stays usable while a new version replaces it
+    assertEquals(List.of("a"), legacy.names());
+    assertEquals(List.of("a", "b"), updated.names());
+    assertEquals(List.of("a", "b"), NameIndex.open(file).orElseThrow().names());
+    assertTrue(Files.exists(directory.resolve("names.idx.1")));
+    assertFalse(Files.exists(file));
+
+    updated.update(List.of("c"), List.of(), Map.of());
+    assertEquals(List.of("a", "b", "c"), NameIndex.open(file).orElseThrow().names());
+    assertFalse(Files.exists(directory.resolve("names.idx.1")));
+  }
+
+  @Test
+  void unreadableFilesAreIgnored() throws IOException {
+    assertEquals(Optional.empty(), NameIndex.open(directory.resolve("missing.idx")));
+
+    var notAnIndex = directory.resolve("other.idx");
+    Files.writeString(notAnIndex, "not a name index at all");
+    assertEquals(Optional.empty(), NameIndex.open(notAnIndex));
+
+    var truncated = directory.resolve("truncated.idx");
+    Files.write(truncated, new byte[] {0x41, 0x53});
+    assertEquals(Optional.empty(), NameIndex.open(truncated));
+  }
+}